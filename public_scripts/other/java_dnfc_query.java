@@ -0,0 +1,998 @@
+/*
+ * ==============================================================================
+ * DNFileVault Columnar Query for Java
+ * ==============================================================================
+ * Answers questions like "all SPX contracts quoted on 2026-01-16" straight
+ * from the .dnfc files the downloader writes with DNFV_COLUMNAR=1, without
+ * loading a whole day into the heap:
+ *   1. Each file is memory-mapped; only the columns a query touches are read.
+ *   2. Every condition is checked against the min/max of the whole file and
+ *      of each 65,536-row zone first, so zones that cannot match are skipped.
+ *   3. The zones left over, across all days, are scanned in parallel on the
+ *      common fork-join pool.
+ *
+ * Requires Java 11+ (no external dependencies).
+ *
+ * COMPILE:
+ *     javac DnfcQuery.java
+ *
+ * RUN:
+ *     java DnfcQuery <folders or .dnfc files>... [column=value | column=from..to]... [--count] [--bench]
+ *
+ *     java DnfcQuery dnfilevault-downloads UnderlyingSymbol=SPX QuoteDate=2026-01-16
+ *     java DnfcQuery dnfilevault-downloads/Groups Expiration=2026-02-01..2026-02-28 --count
+ *
+ *     Folders are searched for .dnfc files (skipping .dnfv_objects, whose
+ *     files are linked into the listing folders anyway) and matching rows
+ *     are printed as CSV. A file linked or copied into several folders is
+ *     read once. Dates may be written yyyy-mm-dd or m/d/yyyy.
+ *     --bench times the query against parsing the CSVs the files were
+ *     converted from, when those are still next to them.
+ *
+ * FROM JAVA:
+ *     List<DnfcQuery.Row> rows = DnfcQuery.where("UnderlyingSymbol").is("SPX")
+ *             .and("QuoteDate").is(LocalDate.of(2026, 1, 16))
+ *             .select(DnfcQuery.files(Paths.get("dnfilevault-downloads")));
+ * ==============================================================================
+ */
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/**
+ * Conditions on .dnfc columns, ANDed together, run over any number of
+ * files. Empty values never match.
+ */
+public class DnfcQuery {
+
+    // =========================================================================
+    // File Format
+    // =========================================================================
+    //
+    // Written by the downloader's Columnar Conversion section, which
+    // describes the layout in full. In short: column arrays, then a footer
+    // with each column's type, position, min/max per zone and dictionary,
+    // then the footer's offset and the magic again. All little-endian.
+
+    static final byte[] MAGIC = "DNFC0001".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    public static final byte LONG = 1, DOUBLE = 2, DATE = 3, SYMBOL = 4, TEXT = 5;
+
+    /** Zones handed to one fork-join task at a time. */
+    private static final int ZONES_PER_TASK = 8;
+
+    /** One memory-mapped .dnfc file. */
+    public static final class Table {
+        final Path path;
+        final long rows;
+        final int zoneRows;
+        final List<Column> columns = new ArrayList<>();
+        private final Map<String, Column> byName = new HashMap<>();
+
+        private Table(Path path, long rows, int zoneRows) {
+            this.path = path;
+            this.rows = rows;
+            this.zoneRows = zoneRows;
+        }
+
+        public static Table open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < 2 * MAGIC.length + 16) throw new IOException(path + " is not a .dnfc file");
+                ByteBuffer tail = map(channel, size - 16, 16);
+                long footerAt = tail.getLong();
+                byte[] magic = new byte[MAGIC.length];
+                tail.get(magic);
+                if (!Arrays.equals(magic, MAGIC) || footerAt < MAGIC.length || footerAt > size - 16) {
+                    throw new IOException(path + " is not a .dnfc file");
+                }
+
+                ByteBuffer footer = map(channel, footerAt, size - 16 - footerAt);
+                if (footer.getInt() != VERSION) throw new IOException(path + " has an unknown .dnfc version");
+                utf(footer);   // source tag, only the downloader needs it
+                Table table = new Table(path, footer.getLong(), footer.getInt());
+                if (table.rows > Integer.MAX_VALUE) throw new IOException(path + " has too many rows");
+
+                for (int c = footer.getInt(); c > 0; c--) {
+                    Column column = new Column(utf(footer), footer.get());
+                    long offset = footer.getLong();
+                    long length = footer.getLong();
+                    column.empty = footer.getLong();
+                    column.min = footer.getLong();
+                    column.max = footer.getLong();
+                    int zones = footer.getInt();
+                    column.zoneMin = new long[zones];
+                    column.zoneMax = new long[zones];
+                    for (int z = 0; z < zones; z++) {
+                        column.zoneMin[z] = footer.getLong();
+                        column.zoneMax[z] = footer.getLong();
+                    }
+                    if (column.type == SYMBOL) {
+                        column.dictionary = new String[footer.getInt()];
+                        for (int i = 0; i < column.dictionary.length; i++) column.dictionary[i] = utf(footer);
+                    }
+                    if (column.type == TEXT) {
+                        long offsets = (table.rows + 1) * 8;
+                        column.data = map(channel, offset, offsets);
+                        column.text = map(channel, offset + offsets, length - offsets);
+                    } else {
+                        column.data = map(channel, offset, length);
+                    }
+                    table.columns.add(column);
+                    table.byName.put(column.name, column);
+                }
+                return table;
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException(path + " has a damaged footer", e);
+            }
+        }
+
+        public Path path() {
+            return path;
+        }
+
+        public int rows() {
+            return (int) rows;
+        }
+
+        public List<Column> columns() {
+            return Collections.unmodifiableList(columns);
+        }
+
+        /** The named column, or null when this file has no such column. */
+        public Column column(String name) {
+            return byName.get(name);
+        }
+
+        int zones() {
+            return (int) ((rows + zoneRows - 1) / zoneRows);
+        }
+
+        /** Mappings stay valid after the channel closes; a column over 2 GB would need splitting. */
+        private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+            if (length > Integer.MAX_VALUE) throw new IOException("column of " + length + " bytes is too large to map");
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static String utf(ByteBuffer buf) {
+            byte[] bytes = new byte[buf.getInt()];
+            buf.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** One column of a Table. Accessors take a row number; empty values read as the type's sentinel. */
+    public static final class Column {
+        final String name;
+        final byte type;
+        long empty;
+        long min;
+        long max;
+        long[] zoneMin;
+        long[] zoneMax;
+        String[] dictionary;
+        ByteBuffer data;
+        ByteBuffer text;
+
+        private Column(String name, byte type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public byte type() {
+            return type;
+        }
+
+        /** A LONG value, Long.MIN_VALUE when empty. */
+        public long getLong(int row) {
+            return data.getLong(row * 8);
+        }
+
+        /** A DOUBLE value, NaN when empty. */
+        public double getDouble(int row) {
+            return data.getDouble(row * 8);
+        }
+
+        /** A SYMBOL's code into dictionary(), -1 when empty. */
+        public int getCode(int row) {
+            return data.getInt(row * 4);
+        }
+
+        public List<String> dictionary() {
+            return dictionary == null ? Collections.emptyList() : Arrays.asList(dictionary);
+        }
+
+        /** The date, or null when empty. */
+        public LocalDate getDate(int row) {
+            int day = data.getInt(row * 4);
+            return day == Integer.MIN_VALUE ? null : LocalDate.ofEpochDay(day);
+        }
+
+        /** Any value as text, "" when empty. */
+        public String getString(int row) {
+            switch (type) {
+                case LONG: {
+                    long v = data.getLong(row * 8);
+                    return v == Long.MIN_VALUE ? "" : Long.toString(v);
+                }
+                case DOUBLE: {
+                    double v = data.getDouble(row * 8);
+                    return Double.isNaN(v) ? "" : Double.toString(v);
+                }
+                case DATE: {
+                    LocalDate v = getDate(row);
+                    return v == null ? "" : v.toString();
+                }
+                case SYMBOL: {
+                    int code = data.getInt(row * 4);
+                    return code < 0 ? "" : dictionary[code];
+                }
+                default:
+                    return new String(textBytes(row), StandardCharsets.UTF_8);
+            }
+        }
+
+        byte[] textBytes(int row) {
+            int from = row == 0 ? 0 : (int) data.getLong(row * 8);
+            int to = (int) data.getLong((row + 1) * 8);
+            byte[] bytes = new byte[to - from];
+            text.duplicate().position(from).get(bytes);
+            return bytes;
+        }
+    }
+
+    /** One matching row. */
+    public static final class Row {
+        final Table table;
+        final int row;
+
+        Row(Table table, int row) {
+            this.table = table;
+            this.row = row;
+        }
+
+        public Table table() {
+            return table;
+        }
+
+        public int row() {
+            return row;
+        }
+
+        /** The named column as text, "" when empty or when this file has no such column. */
+        public String get(String column) {
+            Column c = table.column(column);
+            return c == null ? "" : c.getString(row);
+        }
+
+        public String toCsv() {
+            StringJoiner csv = new StringJoiner(",");
+            for (Column c : table.columns) {
+                String v = c.getString(row);
+                if (v.indexOf(',') >= 0 || v.indexOf('"') >= 0) v = '"' + v.replace("\"", "\"\"") + '"';
+                csv.add(v);
+            }
+            return csv.toString();
+        }
+    }
+
+
+    // =========================================================================
+    // Conditions
+    // =========================================================================
+
+    private final List<Condition> conditions = new ArrayList<>();
+
+    private DnfcQuery() {
+    }
+
+    /** A query matching every row. */
+    public static DnfcQuery all() {
+        return new DnfcQuery();
+    }
+
+    public static Condition where(String column) {
+        return new DnfcQuery().and(column);
+    }
+
+    public Condition and(String column) {
+        return new Condition(this, column);
+    }
+
+    /**
+     * A condition on one column: equal to a value, or between two values
+     * inclusive. Values are compared in the column's own type: numbers for
+     * LONG and DOUBLE, a LocalDate or date text for DATE, text for SYMBOL
+     * and TEXT.
+     */
+    public static final class Condition {
+        private final DnfcQuery query;
+        final String column;
+        Object from;
+        Object to;
+
+        private Condition(DnfcQuery query, String column) {
+            this.query = query;
+            this.column = column;
+        }
+
+        public DnfcQuery is(Object value) {
+            return between(value, value);
+        }
+
+        public DnfcQuery between(Object from, Object to) {
+            this.from = Objects.requireNonNull(from);
+            this.to = Objects.requireNonNull(to);
+            query.conditions.add(this);
+            return query;
+        }
+
+        /**
+         * This condition in the column's terms, or null when the file cannot
+         * match it at all: no such column, a symbol the file never uses, or
+         * values outside the column's min/max.
+         */
+        Bound bind(Table table) {
+            Column c = table.column(column);
+            if (c == null) return null;
+            Bound b = new Bound(c);
+            switch (c.type) {
+                case LONG: {
+                    double lo = Math.ceil(number(from));
+                    double hi = Math.floor(number(to));
+                    b.lo = Math.max(Long.MIN_VALUE + 1, (long) lo);
+                    b.hi = (long) hi;
+                    if (lo > hi) return null;
+                    break;
+                }
+                case DATE:
+                    b.lo = Math.max(Integer.MIN_VALUE + 1, date(from));
+                    b.hi = date(to);
+                    break;
+                case SYMBOL: {
+                    int lo = Arrays.binarySearch(c.dictionary, from.toString());
+                    int hi = Arrays.binarySearch(c.dictionary, to.toString());
+                    b.lo = lo >= 0 ? lo : -lo - 1;      // first code >= from
+                    b.hi = hi >= 0 ? hi : -hi - 2;      // last code <= to
+                    break;
+                }
+                case DOUBLE:
+                    b.dlo = number(from);
+                    b.dhi = number(to);
+                    if (!(b.dlo <= b.dhi)) return null;
+                    return b.dhi < Double.longBitsToDouble(c.min) || b.dlo > Double.longBitsToDouble(c.max) ? null : b;
+                default:
+                    b.tlo = from.toString();
+                    b.thi = to.toString();
+                    return b.tlo.compareTo(b.thi) > 0 ? null : b;
+            }
+            return b.lo > b.hi || b.hi < c.min || b.lo > c.max ? null : b;
+        }
+
+        /** Whether a raw CSV field passes, for comparing against parsing the text. */
+        boolean matchesText(byte type, String field) {
+            if (field.isEmpty()) return false;
+            switch (type) {
+                case LONG:
+                case DOUBLE: {
+                    double v = Double.parseDouble(field);
+                    return v >= number(from) && v <= number(to);
+                }
+                case DATE: {
+                    int v = parseDate(field);
+                    return v != Integer.MIN_VALUE && v >= date(from) && v <= date(to);
+                }
+                default:
+                    return field.compareTo(from.toString()) >= 0 && field.compareTo(to.toString()) <= 0;
+            }
+        }
+
+        private double number(Object v) {
+            if (v instanceof Number) return ((Number) v).doubleValue();
+            try {
+                return Double.parseDouble(v.toString());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(column + ": " + v + " is not a number");
+            }
+        }
+
+        private int date(Object v) {
+            int day = v instanceof LocalDate ? (int) ((LocalDate) v).toEpochDay() : parseDate(v.toString());
+            if (day == Integer.MIN_VALUE) throw new IllegalArgumentException(column + ": " + v + " is not a date");
+            return day;
+        }
+    }
+
+    /** A condition bound to one file's column. */
+    private static final class Bound {
+        final Column column;
+        long lo, hi;          // LONG, DATE, SYMBOL
+        double dlo, dhi;      // DOUBLE
+        String tlo, thi;      // TEXT
+
+        Bound(Column column) {
+            this.column = column;
+        }
+
+        /** False when the zone's min/max rule it out. */
+        boolean mayMatch(int zone) {
+            switch (column.type) {
+                case TEXT:
+                    return true;
+                case DOUBLE:
+                    return dlo <= Double.longBitsToDouble(column.zoneMax[zone])
+                            && dhi >= Double.longBitsToDouble(column.zoneMin[zone]);
+                default:
+                    return lo <= column.zoneMax[zone] && hi >= column.zoneMin[zone];
+            }
+        }
+
+        /** Puts the rows of [from, to) that pass into sel; returns how many. */
+        int scan(int from, int to, int[] sel) {
+            ByteBuffer data = column.data;
+            int n = 0;
+            switch (column.type) {
+                case LONG:
+                    for (int r = from; r < to; r++) {
+                        long v = data.getLong(r * 8);
+                        if (v >= lo && v <= hi) sel[n++] = r;
+                    }
+                    return n;
+                case DATE:
+                case SYMBOL:
+                    for (int r = from; r < to; r++) {
+                        int v = data.getInt(r * 4);
+                        if (v >= lo && v <= hi) sel[n++] = r;
+                    }
+                    return n;
+                default:
+                    for (int r = from; r < to; r++) {
+                        if (test(r)) sel[n++] = r;
+                    }
+                    return n;
+            }
+        }
+
+        /** Keeps only the first n rows of sel that pass; returns how many are left. */
+        int refine(int[] sel, int n) {
+            int kept = 0;
+            for (int i = 0; i < n; i++) {
+                if (test(sel[i])) sel[kept++] = sel[i];
+            }
+            return kept;
+        }
+
+        private boolean test(int r) {
+            switch (column.type) {
+                case LONG: {
+                    long v = column.data.getLong(r * 8);
+                    return v >= lo && v <= hi;
+                }
+                case DATE:
+                case SYMBOL: {
+                    int v = column.data.getInt(r * 4);
+                    return v >= lo && v <= hi;
+                }
+                case DOUBLE: {
+                    double v = column.data.getDouble(r * 8);
+                    return v >= dlo && v <= dhi;
+                }
+                default: {
+                    String v = new String(column.textBytes(r), StandardCharsets.UTF_8);
+                    return !v.isEmpty() && v.compareTo(tlo) >= 0 && v.compareTo(thi) <= 0;
+                }
+            }
+        }
+    }
+
+
+    // =========================================================================
+    // Parallel Scan
+    // =========================================================================
+    //
+    // Every file is opened and its conditions bound first, which already
+    // drops files whose min/max rule them out. What is left is cut into
+    // runs of up to ZONES_PER_TASK zones, and a fork-join task splits the
+    // list of runs in half until each half is one run. Within a run each
+    // zone is checked against the zone maps, then the most selective kind
+    // of scan runs: the first condition over the zone's rows, the others
+    // only over the rows still selected.
+
+    /** A run of zones in one file, with the file's bound conditions. */
+    private static final class Run {
+        final Table table;
+        final List<Bound> bounds;
+        final int fromZone;
+        final int toZone;
+
+        Run(Table table, List<Bound> bounds, int fromZone, int toZone) {
+            this.table = table;
+            this.bounds = bounds;
+            this.fromZone = fromZone;
+            this.toZone = toZone;
+        }
+    }
+
+    /** The rows one run matched. */
+    private static final class Hits {
+        final Table table;
+        final int[] rows;
+        final int count;
+
+        Hits(Table table, int[] rows, int count) {
+            this.table = table;
+            this.rows = rows;
+            this.count = count;
+        }
+    }
+
+    private static final class Scan extends RecursiveTask<List<Hits>> {
+        private static final long serialVersionUID = 1L;
+        private final transient List<Run> runs;
+
+        Scan(List<Run> runs) {
+            this.runs = runs;
+        }
+
+        @Override
+        protected List<Hits> compute() {
+            if (runs.size() > 1) {
+                int mid = runs.size() / 2;
+                Scan left = new Scan(runs.subList(0, mid));
+                left.fork();
+                List<Hits> right = new Scan(runs.subList(mid, runs.size())).compute();
+                List<Hits> all = new ArrayList<>(left.join());
+                all.addAll(right);
+                return all;
+            }
+            List<Hits> hits = new ArrayList<>();
+            for (Run run : runs) hits.add(scan(run));
+            return hits;
+        }
+
+        private static Hits scan(Run run) {
+            Table table = run.table;
+            int[] rows = new int[0];
+            int count = 0;
+            int[] sel = new int[table.zoneRows];
+            for (int zone = run.fromZone; zone < run.toZone; zone++) {
+                int from = zone * table.zoneRows;
+                int to = (int) Math.min(table.rows, (long) from + table.zoneRows);
+                int n;
+                if (run.bounds.isEmpty()) {
+                    n = 0;
+                    for (int r = from; r < to; r++) sel[n++] = r;
+                } else {
+                    if (!mayMatch(run.bounds, zone)) continue;
+                    n = run.bounds.get(0).scan(from, to, sel);
+                    for (int b = 1; b < run.bounds.size() && n > 0; b++) n = run.bounds.get(b).refine(sel, n);
+                }
+                if (n == 0) continue;
+                if (count + n > rows.length) rows = Arrays.copyOf(rows, Math.max(count + n, rows.length * 2));
+                System.arraycopy(sel, 0, rows, count, n);
+                count += n;
+            }
+            return new Hits(table, rows, count);
+        }
+
+        private static boolean mayMatch(List<Bound> bounds, int zone) {
+            for (Bound b : bounds) {
+                if (!b.mayMatch(zone)) return false;
+            }
+            return true;
+        }
+    }
+
+    /** Rows matching every condition, file by file in the order given, rows in file order. */
+    public List<Row> select(List<Path> files) throws IOException {
+        List<Row> rows = new ArrayList<>();
+        for (Hits hits : run(files)) {
+            for (int i = 0; i < hits.count; i++) rows.add(new Row(hits.table, hits.rows[i]));
+        }
+        return rows;
+    }
+
+    public long count(List<Path> files) throws IOException {
+        long count = 0;
+        for (Hits hits : run(files)) count += hits.count;
+        return count;
+    }
+
+    private List<Hits> run(List<Path> files) throws IOException {
+        List<Run> runs = new ArrayList<>();
+        for (Path file : files) {
+            Table table = Table.open(file);
+            List<Bound> bounds = new ArrayList<>();
+            for (Condition condition : conditions) {
+                Bound bound = condition.bind(table);
+                if (bound == null) {
+                    bounds = null;
+                    break;
+                }
+                bounds.add(bound);
+            }
+            if (bounds == null) continue;
+            for (int zone = 0; zone < table.zones(); zone += ZONES_PER_TASK) {
+                runs.add(new Run(table, bounds, zone, Math.min(table.zones(), zone + ZONES_PER_TASK)));
+            }
+        }
+        return runs.isEmpty() ? Collections.emptyList() : ForkJoinPool.commonPool().invoke(new Scan(runs));
+    }
+
+    /**
+     * The .dnfc files under the given folders (or the files themselves),
+     * sorted by path, each file once however many folders it is in.
+     */
+    public static List<Path> files(Path... roots) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path root : roots) {
+            if (!Files.isDirectory(root)) {
+                files.add(root);
+                continue;
+            }
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    Path name = dir.getFileName();
+                    return name != null && name.toString().startsWith(".dnfv") && !dir.equals(root)
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (file.getFileName().toString().endsWith(".dnfc")) files.add(file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        Collections.sort(files);
+        return distinct(files);
+    }
+
+    /**
+     * Drops every file that is the same as one before it. The downloader
+     * hardlinks a .dnfc into each folder its download is listed in, which
+     * shows as a shared file key, and copies it where links are not
+     * possible, which shows as the same size and content.
+     */
+    private static List<Path> distinct(List<Path> files) throws IOException {
+        List<Path> distinct = new ArrayList<>();
+        Set<Object> keys = new HashSet<>();
+        Map<Long, List<Path>> bySize = new HashMap<>();
+        Map<Path, String> digests = new HashMap<>();
+        next:
+        for (Path file : files) {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.fileKey() != null && !keys.add(attrs.fileKey())) continue;
+            List<Path> sameSize = bySize.computeIfAbsent(attrs.size(), size -> new ArrayList<>());
+            for (Path other : sameSize) {
+                if (digest(other, digests).equals(digest(file, digests))) continue next;
+            }
+            sameSize.add(file);
+            distinct.add(file);
+        }
+        return distinct;
+    }
+
+    private static String digest(Path file, Map<Path, String> digests) throws IOException {
+        String digest = digests.get(file);
+        if (digest != null) return digest;
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            byte[] buf = new byte[1 << 16];
+            for (int n; (n = in.read(buf)) > 0; ) sha.update(buf, 0, n);
+            digest = Base64.getEncoder().encodeToString(sha.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digests.put(file, digest);
+        return digest;
+    }
+
+
+    // =========================================================================
+    // Comparing With the CSVs
+    // =========================================================================
+    //
+    // What --bench times on the other side: finding the CSV each .dnfc was
+    // converted from (X.dnfc from X.zip or X.csv, X.part.dnfc from the
+    // part.csv entry of X.zip), parsing every row and testing the same
+    // conditions on the text, spread over the same fork-join pool. It is
+    // a warmed-up loop rather than a proper harness, which is enough to
+    // show the order of magnitude.
+
+    private static final int WARMUP = 2;
+    private static final int MEASURED = 5;
+
+    private interface CsvSource {
+        InputStream open() throws IOException;
+    }
+
+    /** Where X.dnfc came from, or null when that file is no longer next to it. */
+    static CsvSource csvFor(Path dnfc) {
+        String base = dnfc.getFileName().toString();
+        base = base.substring(0, base.length() - ".dnfc".length());
+        String part = "";
+        while (true) {
+            Path csv = dnfc.resolveSibling(base + ".csv");
+            if (Files.isRegularFile(csv)) return () -> Files.newInputStream(csv);
+            Path zip = dnfc.resolveSibling(base + ".zip");
+            if (Files.isRegularFile(zip)) {
+                String wanted = part;
+                return () -> openEntry(zip, wanted);
+            }
+            int dot = base.lastIndexOf('.');
+            if (dot < 0) return null;
+            part = base.substring(dot + 1) + (part.isEmpty() ? "" : "." + part);
+            base = base.substring(0, dot);
+        }
+    }
+
+    /** The archive's CSV entry whose name (sanitised as the downloader does) is part, or its only CSV. */
+    private static InputStream openEntry(Path zip, String part) throws IOException {
+        ZipFile archive = new ZipFile(zip.toFile());
+        try {
+            for (ZipEntry entry : Collections.list(archive.entries())) {
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.toLowerCase(Locale.ROOT).endsWith(".csv")) continue;
+                String clean = name.substring(0, name.length() - 4).replaceAll("[<>:\"/\\\\|?*]", "_").trim();
+                if (!part.isEmpty() && !clean.equals(part)) continue;
+                return new FilterInputStream(archive.getInputStream(entry)) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            archive.close();
+                        }
+                    }
+                };
+            }
+        } catch (IOException | RuntimeException e) {
+            archive.close();
+            throw e;
+        }
+        archive.close();
+        throw new FileNotFoundException("no CSV for " + part + " in " + zip);
+    }
+
+    /** Counts the rows of one CSV that pass, typed like the .dnfc it was converted into. */
+    private long countCsv(CsvSource source, Table table) throws IOException {
+        try (CsvReader csv = new CsvReader(source.open())) {
+            String[] header = csv.next();
+            if (header == null) return 0;
+            int[] index = new int[conditions.size()];
+            byte[] types = new byte[conditions.size()];
+            for (int i = 0; i < index.length; i++) {
+                String name = conditions.get(i).column;
+                index[i] = Arrays.asList(header).indexOf(name);
+                if (index[i] < 0 || table.column(name) == null) return 0;
+                types[i] = table.column(name).type;
+            }
+            long count = 0;
+            rows:
+            for (String[] row; (row = csv.next()) != null; ) {
+                for (int i = 0; i < index.length; i++) {
+                    String field = index[i] < row.length ? row[index[i]] : "";
+                    if (!conditions.get(i).matchesText(types[i], field)) continue rows;
+                }
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private void bench(List<Path> files) throws Exception {
+        Map<Path, CsvSource> sources = new LinkedHashMap<>();
+        Map<Path, Table> tables = new HashMap<>();
+        for (Path file : files) {
+            CsvSource source = csvFor(file);
+            if (source == null) continue;
+            sources.put(file, source);
+            tables.put(file, Table.open(file));
+        }
+        if (sources.isEmpty()) {
+            System.out.println("None of the .dnfc files has its CSV or .zip next to it to compare with.");
+            return;
+        }
+        List<Path> compared = new ArrayList<>(sources.keySet());
+        System.out.println("Comparing over " + compared.size() + " file(s), " + WARMUP + " warm-up and " +
+                MEASURED + " measured runs each...");
+
+        Callable<Long> columnar = () -> count(compared);
+        Callable<Long> text = () -> ForkJoinPool.commonPool().submit(() -> compared.parallelStream()
+                .mapToLong(file -> {
+                    try {
+                        return countCsv(sources.get(file), tables.get(file));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).sum()).get();
+
+        long[] columnarResult = time(columnar);
+        long[] textResult = time(text);
+        System.out.printf("  .dnfc  %,10d rows  %,10.1f ms%n", columnarResult[0], columnarResult[1] / 1e6);
+        System.out.printf("  CSV    %,10d rows  %,10.1f ms%n", textResult[0], textResult[1] / 1e6);
+        if (columnarResult[0] != textResult[0]) System.out.println("  Row counts differ!");
+        System.out.printf("  %.1fx faster%n", (double) textResult[1] / Math.max(1, columnarResult[1]));
+    }
+
+    /** {result, best nanoseconds} over the measured runs. */
+    private static long[] time(Callable<Long> run) throws Exception {
+        long result = 0;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP + MEASURED; i++) {
+            long start = System.nanoTime();
+            result = run.call();
+            long elapsed = System.nanoTime() - start;
+            if (i >= WARMUP) best = Math.min(best, elapsed);
+        }
+        return new long[] { result, best };
+    }
+
+
+    // =========================================================================
+    // Text Helpers (same rules as the downloader's conversion)
+    // =========================================================================
+
+    /** Days since 1970-01-01 for yyyy-mm-dd or m/d/yyyy, or Integer.MIN_VALUE. */
+    static int parseDate(String s) {
+        int y, m, d;
+        if (s.length() == 10 && s.charAt(4) == '-' && s.charAt(7) == '-') {
+            y = digits(s, 0, 4);
+            m = digits(s, 5, 7);
+            d = digits(s, 8, 10);
+        } else {
+            int a = s.indexOf('/');
+            int b = a < 1 ? -1 : s.indexOf('/', a + 1);
+            if (b < 0 || s.length() - b != 5) return Integer.MIN_VALUE;
+            m = digits(s, 0, a);
+            d = digits(s, a + 1, b);
+            y = digits(s, b + 1, s.length());
+        }
+        if (y < 0 || m < 1 || m > 12 || d < 1 || d > 31) return Integer.MIN_VALUE;
+        try {
+            return (int) LocalDate.of(y, m, d).toEpochDay();
+        } catch (java.time.DateTimeException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    private static int digits(String s, int from, int to) {
+        if (from >= to || to - from > 4) return -1;
+        int v = 0;
+        for (int i = from; i < to; i++) {
+            char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') return -1;
+            v = v * 10 + (ch - '0');
+        }
+        return v;
+    }
+
+    /** Comma-separated rows with double-quoted fields; see the downloader's CsvReader. */
+    private static final class CsvReader implements Closeable {
+        private final BufferedReader in;
+        private final List<String> fields = new ArrayList<>();
+        private final StringBuilder quoted = new StringBuilder();
+
+        CsvReader(InputStream in) {
+            this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        String[] next() throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null) return null;
+            } while (line.trim().isEmpty());
+
+            fields.clear();
+            int n = line.length();
+            int i = line.charAt(0) == '\uFEFF' ? 1 : 0;
+            while (true) {
+                if (i < n && line.charAt(i) == '"') {
+                    quoted.setLength(0);
+                    for (i++; i < n; i++) {
+                        char ch = line.charAt(i);
+                        if (ch != '"') {
+                            quoted.append(ch);
+                        } else if (i + 1 < n && line.charAt(i + 1) == '"') {
+                            quoted.append('"');
+                            i++;
+                        } else {
+                            i++;
+                            break;
+                        }
+                    }
+                    fields.add(quoted.toString());
+                    while (i < n && line.charAt(i) != ',') i++;
+                } else {
+                    int end = line.indexOf(',', i);
+                    if (end < 0) end = n;
+                    fields.add(line.substring(i, end).trim());
+                    i = end;
+                }
+                if (i >= n) break;
+                i++;   // the comma
+            }
+            return fields.toArray(new String[0]);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+
+    // =========================================================================
+    // Main
+    // =========================================================================
+
+    public static void main(String[] args) throws Exception {
+        List<Path> roots = new ArrayList<>();
+        DnfcQuery query = all();
+        boolean countOnly = false;
+        boolean bench = false;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (arg.equals("--count")) {
+                countOnly = true;
+            } else if (arg.equals("--bench")) {
+                bench = true;
+            } else if (eq > 0) {
+                String value = arg.substring(eq + 1);
+                int range = value.indexOf("..");
+                Condition condition = query.and(arg.substring(0, eq));
+                query = range < 0 ? condition.is(value)
+                        : condition.between(value.substring(0, range), value.substring(range + 2));
+            } else {
+                roots.add(Paths.get(arg));
+            }
+        }
+        if (roots.isEmpty()) {
+            System.err.println("Usage: java DnfcQuery <folders or .dnfc files>... " +
+                    "[column=value | column=from..to]... [--count] [--bench]");
+            System.exit(2);
+        }
+
+        List<Path> files = files(roots.toArray(new Path[0]));
+        if (bench) {
+            query.bench(files);
+        } else if (countOnly) {
+            System.out.println(query.count(files));
+        } else {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)));
+            Table last = null;
+            String header = null;
+            for (Row row : query.select(files)) {
+                if (row.table != last) {
+                    // Print the header again only when a file's columns differ from the one before
+                    last = row.table;
+                    String names = last.columns.stream().map(Column::name).collect(Collectors.joining(","));
+                    if (!names.equals(header)) out.println(names);
+                    header = names;
+                }
+                out.println(row.toCsv());
+            }
+            out.flush();
+        }
+    }
+}
@@ -7,7 +7,10 @@
  *   2. All Groups
  *
  * It automatically discovers available API servers and fails over
- * to the next one if the primary is down.
+ * to the next one if the primary is down, at startup or mid-sync.
+ *
+ * The login token is saved in the download folder (.dnfv_token, readable
+ * only by you) and reused until it expires.
  *
  * Requires Java 11+ (uses java.net.http.HttpClient, no external dependencies).
  *
@@ -20,25 +23,82 @@
  * OR with environment variables:
  *     DNFV_EMAIL=you@example.com DNFV_PASSWORD=secret java DNFileVaultDownloader
  *
+ * OPTIONS:
+ *     --headless  Never wait for Enter at the end; exit with 0 when everything
+ *                 synced, 1 when some files or listings failed, 2 when no API
+ *                 server could be reached or the login was refused (for cron)
+ *     --daemon    Keep running and sync again on the DNFV_POLL schedule, with the
+ *                 connections, login and sync state kept between syncs (implies
+ *                 --headless; stop it with Ctrl+C or a signal)
+ *
  * CONFIGURATION:
  *     Edit the constants below, or set environment variables:
  *         DNFV_EMAIL       - Your login email
  *         DNFV_PASSWORD    - Your password
  *         DNFV_OUT_DIR     - Download folder (default: ./dnfilevault-downloads)
- *         DNFV_DAYS_CHECK  - Only download newest N files (default: all)
+ *         DNFV_DAYS_CHECK  - Only download files created in the last N days (default: all)
+ *         DNFV_FULL_SCAN   - Set to 1 to check every listed file again instead of only
+ *                          those newer than each purchase's or group's last sync
+ *         DNFV_PARALLELISM - Number of files downloaded at once per host (default: 4)
+ *         DNFV_ADAPTIVE    - Set to 0 to keep DNFV_PARALLELISM fixed instead of adjusting
+ *                          it per host from measured speed and errors
+ *         DNFV_MAX_PARALLELISM - Most files per host the adaptive limit may reach (default: 16)
+ *         DNFV_ORDER       - Which queued file downloads next: listing (default), largest,
+ *                          smallest, newest, or round-robin (across purchases/groups)
+ *         DNFV_LISTING_PARALLELISM - Number of file listings fetched at once (default: 4)
+ *         DNFV_SEGMENTS    - Connections used for one large file (default: 4, 1 = off)
+ *         DNFV_SEGMENT_MB  - Files at least this big are segmented (default: 256)
+ *         DNFV_DISCOVERY_TTL_MIN - Minutes a cached endpoint list counts as fresh (default: 60)
+ *         DNFV_RETRIES     - Times a download, listing or login is retried after a
+ *                          timeout, dropped connection, 429 or 5xx (default: 4)
+ *         DNFV_DEDUP       - Set to 0 to download a file once per folder it is listed in,
+ *                          instead of once into .dnfv_objects with hardlinks to it
+ *                          (where the disk cannot hardlink, it is downloaded once and
+ *                          copied to the other folders)
+ *         DNFV_VERIFY      - Set to 0 to skip checksum checks (sizes are always checked)
+ *         DNFV_UNZIP       - Set to 1 to extract each .zip into a folder of the same name
+ *                          while it downloads, or to "only" to also delete the archive
+ *                          once extracted (default: 0 = leave archives as they are)
+ *         DNFV_COLUMNAR    - Set to 1 to also convert every downloaded CSV (loose or in a
+ *                          .zip) into a memory-mappable columnar .dnfc file beside it,
+ *                          which DnfcQuery.java can query
+ *         DNFV_MAX_MBPS    - Total download speed cap in MB/s, optionally per time of day:
+ *                          "20" caps all day, "09:30-16:00=20" only those hours,
+ *                          "5,18:00-06:00=0" everything but overnight (default: no cap)
+ *         DNFV_HEDGE_SEC   - Start the API download alongside R2 when R2 is this slow
+ *                          after this many seconds (default: 0 = off)
+ *         DNFV_HEDGE_MIN_KBPS - R2 speed below which the hedge starts (default: 64)
+ *         DNFV_VIRTUAL_THREADS - Set to 1 to run downloads and listings on virtual threads
+ *                          (Java 21+; ignored on older JVMs)
+ *         DNFV_POLL        - When --daemon syncs: every N minutes ("30"), at times of day
+ *                          ("06:00,18:30"), or both (default: 60)
  * ==============================================================================
  */
 
 import java.io.*;
 import java.net.URI;
 import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
 import java.util.regex.*;
 import java.util.stream.*;
+import java.util.zip.*;
 
 /**
  * Self-contained DNFileVault downloader. No external dependencies — uses only
@@ -54,6 +114,25 @@ public class DNFileVaultDownloader {
     private static final String PASSWORD = env("DNFV_PASSWORD", "your_password");
     private static final String OUTPUT_FOLDER = env("DNFV_OUT_DIR", "dnfilevault-downloads");
     private static final Integer DAYS_TO_CHECK = envInt("DNFV_DAYS_CHECK", null);
+    private static final int PARALLELISM = Math.max(1, envInt("DNFV_PARALLELISM", 4));
+    private static final boolean ADAPTIVE = !"0".equals(env("DNFV_ADAPTIVE", "1"));
+    private static final int MAX_PARALLELISM = Math.max(PARALLELISM, envInt("DNFV_MAX_PARALLELISM", 16));
+    private static final String ORDER = env("DNFV_ORDER", "listing");
+    private static final int LISTING_PARALLELISM = Math.max(1, envInt("DNFV_LISTING_PARALLELISM", 4));
+    private static final int SEGMENTS = Math.max(1, envInt("DNFV_SEGMENTS", 4));
+    private static final long SEGMENT_THRESHOLD = envInt("DNFV_SEGMENT_MB", 256) * 1024L * 1024L;
+    private static final boolean VIRTUAL_THREADS = envFlag("DNFV_VIRTUAL_THREADS");
+    private static final int DISCOVERY_TTL_MINUTES = envInt("DNFV_DISCOVERY_TTL_MIN", 60);
+    private static final int RETRIES = Math.max(0, envInt("DNFV_RETRIES", 4));
+    private static final boolean FULL_SCAN = envFlag("DNFV_FULL_SCAN");
+    private static final boolean DEDUP = !"0".equals(env("DNFV_DEDUP", "1"));
+    private static final boolean VERIFY_CHECKSUMS = !"0".equals(env("DNFV_VERIFY", "1"));
+    private static final boolean COLUMNAR = envFlag("DNFV_COLUMNAR");
+    private static final String UNZIP_MODE = env("DNFV_UNZIP", "0");
+    private static final boolean UNZIP = !"0".equals(UNZIP_MODE);
+    private static final boolean KEEP_ZIPS = !"only".equalsIgnoreCase(UNZIP_MODE);
+    private static final int HEDGE_SECONDS = envInt("DNFV_HEDGE_SEC", 0);
+    private static final int HEDGE_MIN_KBPS = envInt("DNFV_HEDGE_MIN_KBPS", 64);
 
     // =========================================================================
 
@@ -70,7 +149,26 @@ public class DNFileVaultDownloader {
             .followRedirects(HttpClient.Redirect.NORMAL)
             .build();
 
-    private static String authToken = null;
+    /** The login token; started in main, renewed by whichever call finds it expired. */
+    private static Session session;
+
+    /** Save paths currently being written by a worker, so two jobs never race on one file. */
+    private static final Set<Path> inFlight = ConcurrentHashMap.newKeySet();
+
+    /** The API servers and their health; created in main once one is known to work. */
+    private static EndpointManager apiServers;
+
+    /** What earlier runs downloaded; loaded from the output folder in main. */
+    private static SyncManifest manifest;
+
+    /** Where each file is downloaded once before it is linked into its folders; null with DNFV_DEDUP=0. */
+    private static ObjectStore objectStore;
+
+    /** How far each purchase and group had been synced; loaded with the manifest. */
+    private static Watermarks watermarks;
+
+    /** Listings the last sync could not read; the daemon looks for servers again after any. */
+    private static int listingsFailed;
 
 
     // =========================================================================
@@ -90,6 +188,11 @@ public class DNFileVaultDownloader {
         return fallback;
     }
 
+    private static boolean envFlag(String key) {
+        String val = System.getenv(key);
+        return val != null && (val.equals("1") || val.equalsIgnoreCase("true") || val.equalsIgnoreCase("yes"));
+    }
+
     private static void log(String msg) {
         String ts = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
         System.out.println("[" + ts + "] " + msg);
@@ -101,6 +204,57 @@ public class DNFileVaultDownloader {
         return clean.isEmpty() ? "unnamed_file" : clean;
     }
 
+    /** A response whose status code means the request failed. */
+    private static final class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+        final long retryAfterMillis;   // the server's Retry-After, 0 if it sent none
+
+        HttpStatusException(int status) {
+            this(status, 0);
+        }
+
+        HttpStatusException(int status, long retryAfterMillis) {
+            super("Server returned " + status);
+            this.status = status;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+    }
+
+    /** A Retry-After header, in seconds or as an HTTP date, in milliseconds from now; 0 if absent. */
+    private static long retryAfterMillis(HttpHeaders headers) {
+        String value = headers.firstValue("retry-after").orElse("").trim();
+        if (value.isEmpty()) return 0;
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            try {
+                Instant at = java.time.ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                return Math.max(0, Duration.between(Instant.now(), at).toMillis());
+            } catch (java.time.format.DateTimeParseException e2) {
+                return 0;
+            }
+        }
+    }
+
+    /** A download attempt stopped because a racing attempt finished first. */
+    private static final class CancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException() {
+            super("cancelled, another source finished first");
+        }
+    }
+
+    /** A download that arrived complete but did not match its size or checksum. */
+    private static final class IntegrityException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        IntegrityException(String message) {
+            super(message);
+        }
+    }
+
     private static void ensureFolderExists(Path path) {
         try {
             if (!Files.exists(path)) {
@@ -114,461 +268,4647 @@ public class DNFileVaultDownloader {
 
 
     // =========================================================================
-    // Minimal JSON helpers (no external library needed)
+    // Minimal JSON reader (no external library needed)
     // =========================================================================
 
     /**
-     * Extract a string value for a given key from a JSON object string.
-     * Handles simple flat objects. For nested/array access, use the
-     * dedicated methods below.
+     * Pull-style JSON reader that walks a document once, token by token.
+     * String escapes and nesting are handled properly, so a brace or quote
+     * inside a display_name cannot confuse it.
      */
-    private static String jsonString(String json, String key) {
-        // Match "key": "value" or "key":"value"
-        Pattern p = Pattern.compile("\"" + Pattern.quote(key) + "\"\\s*:\\s*\"([^\"]*)\"");
-        Matcher m = p.matcher(json);
-        return m.find() ? m.group(1) : null;
-    }
+    private static final class JsonReader {
+        private final Reader in;
+        private final char[] buf = new char[8192];
+        private int pos;
+        private int limit;
+        private final StringBuilder sb = new StringBuilder();
 
-    /** Extract an integer value for a given key. */
-    private static Integer jsonInt(String json, String key) {
-        Pattern p = Pattern.compile("\"" + Pattern.quote(key) + "\"\\s*:\\s*(-?\\d+)");
-        Matcher m = p.matcher(json);
-        return m.find() ? Integer.parseInt(m.group(1)) : null;
-    }
+        JsonReader(Reader in) {
+            this.in = in;
+        }
 
-    /** Extract a JSON array as a list of JSON object strings. */
-    private static List<String> jsonArray(String json, String key) {
-        List<String> items = new ArrayList<>();
-        // Find the array start
-        String searchKey = "\"" + key + "\"";
-        int keyIdx = json.indexOf(searchKey);
-        if (keyIdx < 0) return items;
+        /** Next non-whitespace character without consuming it, or -1 at the end. */
+        int peek() throws IOException {
+            while (true) {
+                if (pos == limit) {
+                    limit = in.read(buf, 0, buf.length);
+                    pos = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return -1;
+                    }
+                }
+                char c = buf[pos];
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return c;
+                pos++;
+            }
+        }
 
-        int bracketStart = json.indexOf('[', keyIdx);
-        if (bracketStart < 0) return items;
+        private char next() throws IOException {
+            if (pos == limit && peekRaw() < 0) throw new EOFException("Unexpected end of JSON");
+            return buf[pos++];
+        }
 
-        // Parse objects within the array by matching braces
-        int depth = 0;
-        int objStart = -1;
-        for (int i = bracketStart + 1; i < json.length(); i++) {
-            char c = json.charAt(i);
-            if (c == '{') {
-                if (depth == 0) objStart = i;
-                depth++;
-            } else if (c == '}') {
-                depth--;
-                if (depth == 0 && objStart >= 0) {
-                    items.add(json.substring(objStart, i + 1));
-                    objStart = -1;
+        /** Like peek() but does not skip whitespace (used inside strings and numbers). */
+        private int peekRaw() throws IOException {
+            if (pos == limit) {
+                limit = in.read(buf, 0, buf.length);
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
                 }
-            } else if (c == ']' && depth == 0) {
-                break;
             }
+            return buf[pos];
         }
-        return items;
-    }
 
+        private void expect(char expected) throws IOException {
+            int c = peek();
+            if (c != expected) {
+                throw new IOException("Malformed JSON: expected '" + expected + "' but found " +
+                        (c < 0 ? "end of input" : "'" + (char) c + "'"));
+            }
+            pos++;
+        }
 
-    // =========================================================================
-    // Discovery & Failover
-    // =========================================================================
+        void beginObject() throws IOException { expect('{'); }
+        void endObject() throws IOException   { expect('}'); }
+        void beginArray() throws IOException  { expect('['); }
+        void endArray() throws IOException    { expect(']'); }
 
-    private static List<String> getApiEndpoints() {
-        log("Discovering API endpoints...");
+        /** True if the current object or array has another member; steps over the comma. */
+        boolean hasNext() throws IOException {
+            int c = peek();
+            if (c == ',') {
+                pos++;
+                c = peek();
+            }
+            return c != '}' && c != ']' && c >= 0;
+        }
 
-        try {
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(DISCOVERY_URL))
-                    .header("User-Agent", USER_AGENT)
-                    .timeout(Duration.ofSeconds(10))
-                    .GET().build();
-
-            HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-
-            if (resp.statusCode() == 200) {
-                String body = resp.body();
-                String version = jsonString(body, "version");
-                if (version == null) {
-                    Integer vi = jsonInt(body, "version");
-                    version = vi != null ? vi.toString() : "?";
-                }
-                String updated = jsonString(body, "updated");
-
-                List<String> endpoints = jsonArray(body, "endpoints");
-                // Sort by priority
-                endpoints.sort(Comparator.comparingInt(e -> {
-                    Integer pri = jsonInt(e, "priority");
-                    return pri != null ? pri : 99;
-                }));
+        /** Reads a member name and its colon. */
+        String nextName() throws IOException {
+            String name = nextString();
+            expect(':');
+            return name;
+        }
+
+        String nextString() throws IOException {
+            expect('"');
+            sb.setLength(0);
+            while (true) {
+                char c = next();
+                if (c == '"') return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = next();
+                switch (e) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        char[] hex = { next(), next(), next(), next() };
+                        try {
+                            sb.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new IOException("Malformed JSON: bad \\u escape");
+                        }
+                        break;
+                    default: sb.append(e); break;   // \" \\ \/
+                }
+            }
+        }
+
+        /**
+         * A string, number or boolean as text, or null for a JSON null.
+         * Objects and arrays are skipped and read as null.
+         */
+        String nextScalar() throws IOException {
+            int c = peek();
+            if (c == '"') return nextString();
+            if (c == '{' || c == '[') {
+                skipValue();
+                return null;
+            }
+            String literal = nextLiteral();
+            return literal.equals("null") ? null : literal;
+        }
+
+        private String nextLiteral() throws IOException {
+            sb.setLength(0);
+            int c = peek();
+            while (c >= 0 && c != ',' && c != '}' && c != ']' && c != ':' && !Character.isWhitespace(c)) {
+                sb.append((char) c);
+                pos++;
+                c = peekRaw();
+            }
+            if (sb.length() == 0) throw new IOException("Malformed JSON: expected a value");
+            return sb.toString();
+        }
 
-                log("  Found " + endpoints.size() + " endpoints (config v" + version +
-                        ", updated " + (updated != null ? updated : "?") + ")");
+        /** Reads any value: Map, List, String, Long, Double, Boolean or null. */
+        Object nextValue() throws IOException {
+            int c = peek();
+            if (c == '{') {
+                Map<String, Object> obj = new LinkedHashMap<>();
+                beginObject();
+                while (hasNext()) {
+                    String name = nextName();
+                    obj.put(name, nextValue());
+                }
+                endObject();
+                return obj;
+            }
+            if (c == '[') {
+                List<Object> list = new ArrayList<>();
+                beginArray();
+                while (hasNext()) list.add(nextValue());
+                endArray();
+                return list;
+            }
+            if (c == '"') return nextString();
+
+            String literal = nextLiteral();
+            switch (literal) {
+                case "null":  return null;
+                case "true":  return Boolean.TRUE;
+                case "false": return Boolean.FALSE;
+                default:
+                    try {
+                        return literal.contains(".") || literal.contains("e") || literal.contains("E")
+                                ? (Object) Double.parseDouble(literal) : (Object) Long.parseLong(literal);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed JSON: unexpected '" + literal + "'");
+                    }
+            }
+        }
 
-                List<String> urls = new ArrayList<>();
-                for (String ep : endpoints) {
-                    String url = jsonString(ep, "url");
-                    String label = jsonString(ep, "label");
-                    Integer priority = jsonInt(ep, "priority");
-                    log("    " + priority + ". " + url + " (" + label + ")");
-                    urls.add(url);
+        /** Skips one value of any kind without building it. */
+        void skipValue() throws IOException {
+            int c = peek();
+            if (c == '"') {
+                nextString();
+            } else if (c == '{' || c == '[') {
+                pos++;
+                while (hasNext()) {
+                    if (c == '{') nextName();
+                    skipValue();
                 }
-                return urls;
+                expect(c == '{' ? '}' : ']');
             } else {
-                log("  Discovery returned status " + resp.statusCode() + ", using fallback list.");
+                nextLiteral();
             }
-        } catch (Exception e) {
-            log("  Discovery unavailable (" + e.getMessage() + "), using fallback list.");
         }
-
-        log("  Using " + FALLBACK_ENDPOINTS.length + " fallback endpoints.");
-        return Arrays.asList(FALLBACK_ENDPOINTS);
     }
 
+    /** Parses a whole JSON object; small documents only (discovery, login, listings of groups). */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> parseJson(String json) throws IOException {
+        Object value = new JsonReader(new StringReader(json)).nextValue();
+        if (!(value instanceof Map)) throw new IOException("Expected a JSON object");
+        return (Map<String, Object>) value;
+    }
 
-    private static String findWorkingApi(List<String> endpoints) {
-        log("Finding a healthy API server...");
+    /** A string member, with numbers converted to text (ids may be either). */
+    private static String jsonString(Map<String, Object> obj, String key) {
+        Object v = obj.get(key);
+        return (v instanceof String || v instanceof Number) ? v.toString() : null;
+    }
 
-        for (String url : endpoints) {
-            try {
-                HttpRequest req = HttpRequest.newBuilder()
-                        .uri(URI.create(url + "/health"))
-                        .header("User-Agent", USER_AGENT)
-                        .timeout(Duration.ofSeconds(10))
-                        .GET().build();
+    /** A numeric member, or null. */
+    private static Long jsonLong(Map<String, Object> obj, String key) {
+        Object v = obj.get(key);
+        if (v instanceof Number) return ((Number) v).longValue();
+        if (v instanceof String) {
+            try { return Long.parseLong((String) v); } catch (NumberFormatException e) { /* ignore */ }
+        }
+        return null;
+    }
 
-                HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
+    /** A string as a JSON literal, quotes included. */
+    private static String jsonQuote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+            else sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
 
-                if (resp.statusCode() == 200) {
-                    String status = jsonString(resp.body(), "status");
-                    if ("healthy".equals(status)) {
-                        log("  \u2713 " + url + " - healthy");
-                        return url;
-                    } else {
-                        log("  \u2717 " + url + " - status: " + status);
-                    }
-                } else {
-                    log("  \u2717 " + url + " - returned " + resp.statusCode());
-                }
-            } catch (java.net.http.HttpTimeoutException e) {
-                log("  \u2717 " + url + " - timed out");
-            } catch (java.net.ConnectException e) {
-                log("  \u2717 " + url + " - connection failed");
-            } catch (Exception e) {
-                log("  \u2717 " + url + " - error: " + e.getMessage());
+    /** The objects inside an array member; empty if missing. */
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> jsonArray(Map<String, Object> obj, String key) {
+        List<Map<String, Object>> items = new ArrayList<>();
+        Object v = obj.get(key);
+        if (v instanceof List) {
+            for (Object item : (List<Object>) v) {
+                if (item instanceof Map) items.add((Map<String, Object>) item);
             }
         }
-        return null;
+        return items;
     }
 
 
-    // =========================================================================
-    // Authentication
-    // =========================================================================
+    /** One file record from a /purchases/{id}/files or /groups/{id}/files listing. */
+    private static final class VaultFile {
+        final String uuidFilename;
+        final String displayName;
+        final long fileSize;          // 0 when the listing does not say
+        final String checksum;
+        final String createdAt;
+        final String cloudShareLink;
 
-    private static String loginToApi(String baseUrl) {
-        log("Logging in as " + EMAIL + "...");
+        VaultFile(String uuidFilename, String displayName, long fileSize, String checksum,
+                  String createdAt, String cloudShareLink) {
+            this.uuidFilename = uuidFilename;
+            this.displayName = displayName;
+            this.fileSize = fileSize;
+            this.checksum = checksum;
+            this.createdAt = createdAt;
+            this.cloudShareLink = cloudShareLink;
+        }
 
-        try {
-            String payload = "{\"email\":\"" + EMAIL + "\",\"password\":\"" + PASSWORD + "\"}";
+        /** Binds the next object in the reader, skipping fields the downloader does not use. */
+        static VaultFile read(JsonReader r) throws IOException {
+            String uuid = null, name = null, checksum = null, created = null, link = null;
+            long size = 0;
 
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(baseUrl + "/auth/login"))
-                    .header("User-Agent", USER_AGENT)
-                    .header("Content-Type", "application/json")
-                    .timeout(Duration.ofSeconds(60))
-                    .POST(HttpRequest.BodyPublishers.ofString(payload))
-                    .build();
+            r.beginObject();
+            while (r.hasNext()) {
+                switch (r.nextName()) {
+                    case "uuid_filename":    uuid = r.nextScalar(); break;
+                    case "display_name":     name = r.nextScalar(); break;
+                    case "checksum":         checksum = r.nextScalar(); break;
+                    case "created_at":       created = r.nextScalar(); break;
+                    case "cloud_share_link": link = r.nextScalar(); break;
+                    case "file_size":
+                        String value = r.nextScalar();
+                        try {
+                            size = value != null ? (long) Double.parseDouble(value) : 0;
+                        } catch (NumberFormatException e) {
+                            size = 0;
+                        }
+                        break;
+                    default:
+                        r.skipValue();
+                }
+            }
+            r.endObject();
+            return new VaultFile(uuid, name, size, checksum, created, link);
+        }
+    }
 
-            HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
+    /** Receives file records as a listing is parsed; the socket is not read while it runs. */
+    private interface FileSink {
+        void accept(VaultFile file) throws InterruptedException;
+    }
 
-            if (resp.statusCode() == 200) {
-                String token = jsonString(resp.body(), "token");
-                log("Login successful!");
-                return token;
-            } else if (resp.statusCode() == 401) {
-                log("Login failed: Incorrect email or password.");
-            } else {
-                log("Login failed: Server returned " + resp.statusCode());
+    /**
+     * Reads the "files" array of a listing response and hands each record to
+     * the sink as soon as its closing brace is read.
+     *
+     * @return the number of records delivered
+     */
+    private static int readFiles(Reader body, FileSink sink) throws IOException, InterruptedException {
+        int count = 0;
+        JsonReader r = new JsonReader(body);
+        r.beginObject();
+        while (r.hasNext()) {
+            if (!r.nextName().equals("files")) {
+                r.skipValue();
+                continue;
             }
-        } catch (java.net.http.HttpTimeoutException e) {
-            log("Login failed: Request timed out.");
-        } catch (java.net.ConnectException e) {
-            log("Login failed: Could not reach " + baseUrl);
-        } catch (Exception e) {
-            log("Login failed: " + e.getMessage());
+            r.beginArray();
+            while (r.hasNext()) {
+                sink.accept(VaultFile.read(r));
+                count++;
+            }
+            r.endArray();
         }
-        return null;
+        r.endObject();
+        return count;
     }
 
 
     // =========================================================================
-    // File Download
+    // Discovery & Failover
     // =========================================================================
 
-    private static boolean downloadFile(String fileJson, String saveDirectory,
-                                         String baseUrl) {
-        String uuidFilename = jsonString(fileJson, "uuid_filename");
-        String cloudUrl = jsonString(fileJson, "cloud_share_link");
-        String displayName = jsonString(fileJson, "display_name");
-        if (displayName == null || displayName.isEmpty()) displayName = uuidFilename;
+    // The discovery document is cached as .dnfv_endpoints.json in the output
+    // folder. A fresh copy (younger than DNFV_DISCOVERY_TTL_MIN) is used as is;
+    // a stale one is still used straight away while a background request
+    // refreshes it for the next run. Only with no cache at all does startup
+    // wait for config.dnfilevault.com, and when that host is down any cached
+    // copy, however old, beats the hard-coded FALLBACK_ENDPOINTS.
 
-        String safeName = sanitizeFilename(displayName);
-        Path fullSavePath = Paths.get(saveDirectory, safeName);
+    /** Background refresh of a stale discovery cache; main waits for it before exiting. */
+    private static volatile CompletableFuture<Void> discoveryRefresh = CompletableFuture.completedFuture(null);
 
-        // Skip if already downloaded
-        if (Files.exists(fullSavePath)) return false;
+    private static Path discoveryCachePath() {
+        return Paths.get(OUTPUT_FOLDER, ".dnfv_endpoints.json");
+    }
 
-        Path tempPath = Paths.get(saveDirectory, safeName + ".tmp");
+    /**
+     * The API servers to try, best first. With current set a stale cache is
+     * refreshed before it is used rather than in the background, for a
+     * daemon that has been running on the old list for a while.
+     */
+    private static List<String> getApiEndpoints(boolean current) {
+        log("Discovering API endpoints...");
 
-        // Method 1: R2 Direct Link (PRIMARY)
-        if (cloudUrl != null && !cloudUrl.isEmpty()) {
-            log("  Downloading: " + safeName + " via R2...");
-            try {
-                HttpRequest req = HttpRequest.newBuilder()
-                        .uri(URI.create(cloudUrl))
-                        .timeout(Duration.ofMinutes(5))
-                        .GET().build();
+        Path cache = discoveryCachePath();
+        Map<String, Object> cached = null;
+        long ageMinutes = -1;
+        try {
+            if (Files.exists(cache)) {
+                cached = parseJson(new String(Files.readAllBytes(cache), StandardCharsets.UTF_8));
+                ageMinutes = Duration.ofMillis(System.currentTimeMillis() -
+                        Files.getLastModifiedTime(cache).toMillis()).toMinutes();
+            }
+        } catch (IOException e) {
+            log("  Ignoring unreadable discovery cache (" + e.getMessage() + ").");
+            cached = null;
+        }
 
-                HttpResponse<InputStream> resp = httpClient.send(req,
-                        HttpResponse.BodyHandlers.ofInputStream());
+        boolean usable = cached != null && !jsonArray(cached, "endpoints").isEmpty();
+        if (usable && (!current || ageMinutes < DISCOVERY_TTL_MINUTES)) {
+            boolean fresh = ageMinutes < DISCOVERY_TTL_MINUTES;
+            log("  Using cached endpoints (" + ageMinutes + " min old" +
+                    (fresh ? ")" : ", refreshing in the background)"));
+            if (!fresh) {
+                String cachedVersion = jsonString(cached, "version");
+                discoveryRefresh = fetchDiscovery().thenAccept(body -> {
+                    if (body == null) return;
+                    try {
+                        String version = jsonString(parseJson(body), "version");
+                        writeDiscoveryCache(body);
+                        if (!Objects.equals(version, cachedVersion)) {
+                            log("  Discovery config changed to v" + version + "; it applies from the next run.");
+                        }
+                    } catch (IOException e) {
+                        log("  Ignoring bad discovery refresh (" + e.getMessage() + ").");
+                    }
+                });
+            }
+            return endpointUrls(cached);
+        }
 
-                if (resp.statusCode() == 200) {
-                    saveContent(resp, tempPath, fullSavePath);
-                    long sizeMb = Files.size(fullSavePath) / (1024 * 1024);
-                    log("  \u2713 Complete (R2) - " + sizeMb + " MB");
-                    return true;
-                } else {
-                    log("  R2 returned " + resp.statusCode() + ", trying fallback...");
+        try {
+            String body = fetchDiscovery().join();
+            if (body != null) {
+                Map<String, Object> doc = parseJson(body);
+                List<String> urls = endpointUrls(doc);
+                if (!urls.isEmpty()) {
+                    writeDiscoveryCache(body);
+                    return urls;
                 }
-            } catch (Exception e) {
-                log("  R2 failed: " + e.getMessage() + ", trying fallback...");
-                try { Files.deleteIfExists(tempPath); } catch (IOException ignored) {}
             }
+        } catch (Exception e) {
+            log("  Discovery unavailable (" + e.getMessage() + ").");
         }
 
-        // Method 2: API Server (FALLBACK)
-        if (uuidFilename == null || uuidFilename.isEmpty()) {
-            log("  \u2717 No download ID for " + safeName);
-            return false;
+        if (usable) {
+            log("  Using cached endpoints (" + ageMinutes + " min old).");
+            return endpointUrls(cached);
         }
+        log("  Using " + FALLBACK_ENDPOINTS.length + " fallback endpoints.");
+        return Arrays.asList(FALLBACK_ENDPOINTS);
+    }
 
-        log("  Downloading: " + safeName + " via API...");
+    /** True once the cached discovery document is older than DNFV_DISCOVERY_TTL_MIN, or missing. */
+    private static boolean discoveryStale() {
         try {
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(baseUrl + "/download/" + uuidFilename))
-                    .header("User-Agent", USER_AGENT)
-                    .header("Authorization", "Bearer " + authToken)
-                    .timeout(Duration.ofMinutes(10))
-                    .GET().build();
-
-            HttpResponse<InputStream> resp = httpClient.send(req,
-                    HttpResponse.BodyHandlers.ofInputStream());
+            long age = System.currentTimeMillis() - Files.getLastModifiedTime(discoveryCachePath()).toMillis();
+            return age >= TimeUnit.MINUTES.toMillis(DISCOVERY_TTL_MINUTES);
+        } catch (IOException e) {
+            return true;
+        }
+    }
 
-            if (resp.statusCode() == 200) {
-                saveContent(resp, tempPath, fullSavePath);
-                long sizeMb = Files.size(fullSavePath) / (1024 * 1024);
-                log("  \u2713 Complete (API) - " + sizeMb + " MB");
-                return true;
-            } else {
-                log("  \u2717 Failed: " + safeName + " - Status " + resp.statusCode());
-            }
+    /** Gives a background discovery refresh a chance to land before the JVM exits. */
+    private static void awaitDiscoveryRefresh() {
+        try {
+            discoveryRefresh.get(15, TimeUnit.SECONDS);
         } catch (Exception e) {
-            log("  \u2717 Error: " + safeName + " - " + e.getMessage());
-            try { Files.deleteIfExists(tempPath); } catch (IOException ignored) {}
+            // The next run will try again
         }
-        return false;
     }
 
+    /** Fetches the discovery document; completes with null (after logging why) if it is unavailable. */
+    private static CompletableFuture<String> fetchDiscovery() {
+        HttpRequest req = HttpRequest.newBuilder()
+                .uri(URI.create(DISCOVERY_URL))
+                .header("User-Agent", USER_AGENT)
+                .timeout(Duration.ofSeconds(10))
+                .GET().build();
 
-    private static void saveContent(HttpResponse<InputStream> resp,
-                                     Path tempPath, Path finalPath) throws IOException {
-        long totalSize = resp.headers().firstValueAsLong("content-length").orElse(0);
-        long totalDownloaded = 0;
-        long startTime = System.currentTimeMillis();
-        byte[] buffer = new byte[1024 * 1024]; // 1 MB
-
-        try (InputStream in = resp.body();
-             OutputStream out = new BufferedOutputStream(new FileOutputStream(tempPath.toFile()))) {
-
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-                totalDownloaded += bytesRead;
-
-                long elapsed = System.currentTimeMillis() - startTime;
-                if (elapsed > 0 && System.console() != null) {
-                    double speedMbps = (totalDownloaded / (1024.0 * 1024.0)) / (elapsed / 1000.0);
-                    if (totalSize > 0) {
-                        double percent = (totalDownloaded / (double) totalSize) * 100;
-                        System.out.printf("\r    Progress: %6.1f%% | Speed: %6.2f MB/s", percent, speedMbps);
-                    } else {
-                        System.out.printf("\r    Downloaded: %7.1f MB | Speed: %6.2f MB/s",
-                                totalDownloaded / (1024.0 * 1024.0), speedMbps);
-                    }
-                }
+        return httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString()).handle((resp, err) -> {
+            if (err != null) {
+                Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+                log("  Discovery unavailable (" + cause.getMessage() + ").");
+                return null;
             }
-        }
-
-        if (System.console() != null) System.out.println();
-
-        Files.deleteIfExists(finalPath);
-        Files.move(tempPath, finalPath);
+            if (resp.statusCode() != 200) {
+                log("  Discovery returned status " + resp.statusCode() + ".");
+                return null;
+            }
+            return resp.body();
+        });
     }
 
+    private static void writeDiscoveryCache(String body) {
+        Path cache = discoveryCachePath();
+        Path tmp = cache.resolveSibling(cache.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(cache.getParent());
+            Files.write(tmp, body.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log("  Could not cache discovery config: " + e.getMessage());
+        }
+    }
 
-    // =========================================================================
-    // Main
-    // =========================================================================
-
-    public static void main(String[] args) throws Exception {
-        log("==================================================");
-        log("DNFileVault Downloader v2.0 (Java)");
-        log("==================================================");
-        log("Output: " + OUTPUT_FOLDER);
+    /** Endpoint URLs of a discovery document in priority order, logged as they are read. */
+    private static List<String> endpointUrls(Map<String, Object> body) {
+        String version = jsonString(body, "version");
+        if (version == null) version = "?";
+        String updated = jsonString(body, "updated");
 
-        // Discover API endpoints
-        List<String> endpoints = getApiEndpoints();
+        List<Map<String, Object>> endpoints = jsonArray(body, "endpoints");
+        // Sort by priority
+        endpoints.sort(Comparator.comparingLong(e -> {
+            Long pri = jsonLong(e, "priority");
+            return pri != null ? pri : 99;
+        }));
 
-        // Find healthy server
-        String baseUrl = findWorkingApi(endpoints);
-        if (baseUrl == null) {
-            log("ERROR: All API servers are unreachable!");
-            log("Contact support@deltaneutral.com if this persists.");
-            System.out.println("Press Enter to exit...");
-            System.in.read();
-            return;
-        }
-        log("Using API: " + baseUrl);
+        log("  Found " + endpoints.size() + " endpoints (config v" + version +
+                ", updated " + (updated != null ? updated : "?") + ")");
 
-        // Login
-        authToken = loginToApi(baseUrl);
-        if (authToken == null) {
-            log("Exiting due to login failure.");
-            System.out.println("Press Enter to exit...");
-            System.in.read();
-            return;
+        List<String> urls = new ArrayList<>();
+        for (Map<String, Object> ep : endpoints) {
+            String url = jsonString(ep, "url");
+            String label = jsonString(ep, "label");
+            Long priority = jsonLong(ep, "priority");
+            if (url == null) continue;
+            log("    " + priority + ". " + url + " (" + label + ")");
+            urls.add(url);
         }
+        return urls;
+    }
 
-        ensureFolderExists(Paths.get(OUTPUT_FOLDER));
-        int totalDownloaded = 0;
-
-        // Download Purchases
-        log("--- Checking Purchases ---");
-        try {
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(baseUrl + "/purchases"))
-                    .header("User-Agent", USER_AGENT)
-                    .header("Authorization", "Bearer " + authToken)
-                    .timeout(Duration.ofSeconds(60))
-                    .GET().build();
 
-            HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-            List<String> purchases = jsonArray(resp.body(), "purchases");
+    /** How much slower than the first healthy answer a higher-priority server may be and still win. */
+    private static final long PROBE_TIE_MS = 50;
 
-            if (purchases.isEmpty()) {
-                log("No purchases found.");
-            }
+    /** Outcome of one /health probe. */
+    private static final class Probe {
+        final int priority;        // position in the discovery order, 0 = preferred
+        final String url;
+        final long rttMs;
+        final boolean healthy;
+        final String problem;      // why it is not healthy, for the log
 
-            for (String p : purchases) {
-                String pid = jsonString(p, "id");
-                if (pid == null) {
-                    Integer pidInt = jsonInt(p, "id");
-                    pid = pidInt != null ? pidInt.toString() : "unknown";
-                }
-                String productName = jsonString(p, "product_name");
-                if (productName == null) productName = "Unknown";
+        Probe(int priority, String url, long rttMs, boolean healthy, String problem) {
+            this.priority = priority;
+            this.url = url;
+            this.rttMs = rttMs;
+            this.healthy = healthy;
+            this.problem = problem;
+        }
+    }
 
-                String folderName = sanitizeFilename(pid + " - " + productName);
-                String productPath = Paths.get(OUTPUT_FOLDER, "Purchases", folderName).toString();
-                ensureFolderExists(Paths.get(productPath));
+    /**
+     * Probes every endpoint's /health at once and returns the fastest healthy
+     * one. The first healthy answer opens a PROBE_TIE_MS window; any other
+     * server that answers healthy inside it counts as equally fast, and the
+     * discovery priority breaks the tie. Slower probes are left to finish
+     * in the background.
+     */
+    private static String findWorkingApi(List<String> endpoints) {
+        log("Finding a healthy API server...");
+        if (endpoints.isEmpty()) return null;
 
-                try {
-                    HttpRequest filesReq = HttpRequest.newBuilder()
-                            .uri(URI.create(baseUrl + "/purchases/" + pid + "/files"))
-                            .header("User-Agent", USER_AGENT)
-                            .header("Authorization", "Bearer " + authToken)
-                            .timeout(Duration.ofSeconds(60))
-                            .GET().build();
+        BlockingQueue<Probe> answers = new LinkedBlockingQueue<>();
+        for (int i = 0; i < endpoints.size(); i++) {
+            int priority = i;
+            String url = endpoints.get(i);
+            long start = System.nanoTime();
+            try {
+                HttpRequest req = HttpRequest.newBuilder()
+                        .uri(URI.create(url + "/health"))
+                        .header("User-Agent", USER_AGENT)
+                        .timeout(Duration.ofSeconds(10))
+                        .GET().build();
 
-                    HttpResponse<String> filesResp = httpClient.send(filesReq,
-                            HttpResponse.BodyHandlers.ofString());
-                    List<String> files = jsonArray(filesResp.body(), "files");
+                httpClient.sendAsync(req, HttpResponse.BodyHandlers.ofString()).whenComplete((resp, err) ->
+                        answers.add(probeResult(priority, url, (System.nanoTime() - start) / 1_000_000, resp, err)));
+            } catch (IllegalArgumentException e) {
+                answers.add(new Probe(priority, url, 0, false, "error: " + e.getMessage()));
+            }
+        }
 
-                    if (DAYS_TO_CHECK != null && files.size() > DAYS_TO_CHECK) {
-                        files = files.subList(0, DAYS_TO_CHECK);
-                    }
+        List<Probe> healthy = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 11_000;
+        try {
+            for (int received = 0; received < endpoints.size(); received++) {
+                Probe p = answers.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (p == null) break;
 
-                    for (String f : files) {
-                        if (downloadFile(f, productPath, baseUrl)) totalDownloaded++;
-                    }
-                } catch (Exception e) {
-                    log("Error getting files for purchase " + pid + ": " + e.getMessage());
+                if (p.healthy) {
+                    log("  \u2713 " + p.url + " - healthy (" + p.rttMs + " ms)");
+                    if (healthy.isEmpty()) deadline = System.currentTimeMillis() + PROBE_TIE_MS;
+                    healthy.add(p);
+                } else {
+                    log("  \u2717 " + p.url + " - " + p.problem);
                 }
             }
-        } catch (Exception e) {
-            log("Error checking purchases: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
-        // Download Groups
-        log("--- Checking Groups ---");
+        return healthy.stream()
+                .min(Comparator.comparingInt((Probe p) -> p.priority))
+                .map(p -> p.url)
+                .orElse(null);
+    }
+
+    private static Probe probeResult(int priority, String url, long rttMs,
+                                     HttpResponse<String> resp, Throwable err) {
+        if (err != null) {
+            Throwable cause = err instanceof CompletionException && err.getCause() != null ? err.getCause() : err;
+            if (cause instanceof java.net.http.HttpTimeoutException) {
+                return new Probe(priority, url, rttMs, false, "timed out");
+            } else if (cause instanceof java.net.ConnectException) {
+                return new Probe(priority, url, rttMs, false, "connection failed");
+            }
+            return new Probe(priority, url, rttMs, false, "error: " + cause.getMessage());
+        }
+        if (resp.statusCode() != 200) {
+            return new Probe(priority, url, rttMs, false, "returned " + resp.statusCode());
+        }
         try {
-            HttpRequest req = HttpRequest.newBuilder()
-                    .uri(URI.create(baseUrl + "/groups"))
-                    .header("User-Agent", USER_AGENT)
-                    .header("Authorization", "Bearer " + authToken)
-                    .timeout(Duration.ofSeconds(60))
-                    .GET().build();
+            String status = jsonString(parseJson(resp.body()), "status");
+            return "healthy".equals(status) ? new Probe(priority, url, rttMs, true, null)
+                    : new Probe(priority, url, rttMs, false, "status: " + status);
+        } catch (IOException e) {
+            return new Probe(priority, url, rttMs, false, "error: " + e.getMessage());
+        }
+    }
 
-            HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
-            List<String> groups = jsonArray(resp.body(), "groups");
 
-            if (groups.isEmpty()) {
-                log("No groups found.");
-            }
+    // =========================================================================
+    // Mid-run Failover
+    // =========================================================================
 
-            for (String g : groups) {
-                String gid = jsonString(g, "id");
-                if (gid == null) {
-                    Integer gidInt = jsonInt(g, "id");
-                    gid = gidInt != null ? gidInt.toString() : "unknown";
-                }
-                String groupName = jsonString(g, "name");
-                if (groupName == null) groupName = "Unknown";
+    /** One API request, made against whichever server the EndpointManager picks. */
+    private interface ApiCall<T> {
+        T call(String baseUrl) throws IOException, InterruptedException;
+    }
 
-                String folderName = sanitizeFilename(gid + " - " + groupName);
-                String groupPath = Paths.get(OUTPUT_FOLDER, "Groups", folderName).toString();
-                ensureFolderExists(Paths.get(groupPath));
+    /**
+     * Keeps every discovered API server behind a circuit breaker so a server
+     * that dies mid-sync stops receiving traffic. Listing calls and API
+     * fallback downloads go through call(), which uses the first server
+     * whose breaker is closed and moves to the next one on connection
+     * errors, timeouts, 429 and 5xx. Other statuses (401, 404...) belong to
+     * the request, not the server, and are passed straight back.
+     *
+     * A breaker opens after BREAKER_THRESHOLD consecutive faults. An open
+     * server is probed on /health in the background every BREAKER_PROBE_SECONDS;
+     * a healthy answer (or BREAKER_COOLDOWN_SECONDS passing) half-opens it,
+     * and the next real request either closes it again or re-opens it. Only
+     * that one trial request goes to a half-open server; every other call
+     * meanwhile passes it over as if it were still open. A
+     * 429 or 503 with Retry-After opens the breaker straight away instead,
+     * until exactly that time has passed, whatever /health says.
+     */
+    private static final class EndpointManager {
+        private static final int BREAKER_THRESHOLD = 3;
+        private static final long BREAKER_COOLDOWN_SECONDS = 60;
+        private static final long BREAKER_PROBE_SECONDS = 15;
 
-                try {
-                    HttpRequest filesReq = HttpRequest.newBuilder()
-                            .uri(URI.create(baseUrl + "/groups/" + gid + "/files"))
-                            .header("User-Agent", USER_AGENT)
-                            .header("Authorization", "Bearer " + authToken)
-                            .timeout(Duration.ofSeconds(60))
-                            .GET().build();
+        private enum State { CLOSED, OPEN, HALF_OPEN }
 
-                    HttpResponse<String> filesResp = httpClient.send(filesReq,
-                            HttpResponse.BodyHandlers.ofString());
-                    List<String> files = jsonArray(filesResp.body(), "files");
+        private static final class Breaker {
+            final String url;
+            State state = State.CLOSED;
+            int consecutiveFaults;
+            long openedAt;
+            long notBefore;   // from a Retry-After: no traffic before this
+            boolean trial;    // half-open: the one request let through is still running
 
-                    if (DAYS_TO_CHECK != null && files.size() > DAYS_TO_CHECK) {
-                        files = files.subList(0, DAYS_TO_CHECK);
-                    }
+            Breaker(String url) {
+                this.url = url;
+            }
+        }
 
-                    for (String f : files) {
-                        if (downloadFile(f, groupPath, baseUrl)) totalDownloaded++;
-                    }
-                } catch (Exception e) {
-                    log("Error getting files for group " + gid + ": " + e.getMessage());
-                }
+        private final List<Breaker> breakers = new ArrayList<>();
+        private final ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dnfv-breaker-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        private volatile String lastUsed;
+
+        /** The server picked at startup goes first; the rest keep their discovery order. */
+        EndpointManager(String primary, List<String> discovered) {
+            breakers.add(new Breaker(primary));
+            for (String url : discovered) {
+                if (!url.equals(primary)) breakers.add(new Breaker(url));
             }
-        } catch (Exception e) {
-            log("Error checking groups: " + e.getMessage());
+            lastUsed = primary;
+            prober.scheduleWithFixedDelay(this::probeOpenBreakers,
+                    BREAKER_PROBE_SECONDS, BREAKER_PROBE_SECONDS, TimeUnit.SECONDS);
         }
 
-        log("All done! Downloaded " + totalDownloaded + " new file(s).");
+        /** Runs the call against healthy servers in turn until one succeeds or all have been tried. */
+        <T> T call(ApiCall<T> call) throws IOException, InterruptedException {
+            IOException last = null;
+            Set<String> tried = new HashSet<>();
+            Set<String> trials = new HashSet<>();
+            for (int attempt = 0; attempt < breakers.size(); attempt++) {
+                String url = pick(tried, trials);
+                if (url == null) break;
+                tried.add(url);
+                try {
+                    T result = call.call(url);
+                    succeeded(url);
+                    return result;
+                } catch (IOException e) {
+                    if (!Retry.isTransient(e)) throw e;
+                    failed(url, e);
+                    last = e;
+                } finally {
+                    if (trials.remove(url)) endTrial(url);
+                }
+            }
+            throw last != null ? last : new IOException("No API server available");
+        }
+
+        /** False once every server's breaker is open and none has cooled down yet. */
+        synchronized boolean usable() {
+            long now = System.currentTimeMillis();
+            for (Breaker b : breakers) {
+                if (b.state != State.OPEN || cooledDown(b, now)) return true;
+            }
+            return false;
+        }
+
+        /** True while any server's breaker is open. */
+        synchronized boolean anyOpen() {
+            for (Breaker b : breakers) {
+                if (b.state == State.OPEN) return true;
+            }
+            return false;
+        }
+
+        /** How long until some server's Retry-After has passed, 0 if any server may be used now. */
+        synchronized long pausedMillis() {
+            long now = System.currentTimeMillis();
+            long soonest = Long.MAX_VALUE;
+            for (Breaker b : breakers) soonest = Math.min(soonest, Math.max(0, b.notBefore - now));
+            return soonest == Long.MAX_VALUE ? 0 : soonest;
+        }
+
+        /**
+         * First server not yet tried whose breaker lets traffic through. A
+         * half-open one takes a single trial at a time; the caller granted it
+         * finds its url added to trials.
+         */
+        private synchronized String pick(Set<String> tried, Set<String> trials) {
+            long now = System.currentTimeMillis();
+            for (Breaker b : breakers) {
+                if (tried.contains(b.url)) continue;
+                if (b.state == State.OPEN && cooledDown(b, now)) b.state = State.HALF_OPEN;
+                if (b.state == State.HALF_OPEN) {
+                    if (b.trial) continue;
+                    b.trial = true;
+                    trials.add(b.url);
+                }
+                if (b.state != State.OPEN) {
+                    if (!b.url.equals(lastUsed)) {
+                        log("  Switching API server to " + b.url);
+                        lastUsed = b.url;
+                    }
+                    return b.url;
+                }
+            }
+            return null;
+        }
+
+        private synchronized void succeeded(String url) {
+            Breaker b = find(url);
+            if (b == null) return;
+            if (b.state != State.CLOSED) log("  API server " + url + " is back (circuit closed).");
+            b.state = State.CLOSED;
+            b.consecutiveFaults = 0;
+            b.notBefore = 0;
+        }
+
+        /** Frees the trial slot, so a trial that ended without settling the breaker lets the next one through. */
+        private synchronized void endTrial(String url) {
+            Breaker b = find(url);
+            if (b != null) b.trial = false;
+        }
+
+        private static boolean cooledDown(Breaker b, long now) {
+            return b.notBefore > 0 ? now >= b.notBefore : now - b.openedAt >= BREAKER_COOLDOWN_SECONDS * 1000;
+        }
+
+        private synchronized void failed(String url, IOException e) {
+            Breaker b = find(url);
+            if (b == null) return;
+            b.consecutiveFaults++;
+            long retryAfter = e instanceof HttpStatusException ? ((HttpStatusException) e).retryAfterMillis : 0;
+            if (retryAfter > 0) {
+                b.notBefore = Math.max(b.notBefore, System.currentTimeMillis() + retryAfter);
+                if (b.state != State.OPEN) {
+                    b.state = State.OPEN;
+                    b.openedAt = System.currentTimeMillis();
+                    log("  API server " + url + " asked for a pause of " + Retry.seconds(retryAfter) +
+                            " (" + e.getMessage() + "), circuit open.");
+                }
+                return;
+            }
+            if (b.state == State.HALF_OPEN || (b.state == State.CLOSED && b.consecutiveFaults >= BREAKER_THRESHOLD)) {
+                b.state = State.OPEN;
+                b.openedAt = System.currentTimeMillis();
+                b.notBefore = 0;
+                log("  API server " + url + " tripped after " + b.consecutiveFaults +
+                        " error(s) (" + e.getMessage() + "), circuit open.");
+            }
+        }
+
+        private Breaker find(String url) {
+            for (Breaker b : breakers) {
+                if (b.url.equals(url)) return b;
+            }
+            return null;
+        }
+
+        /** Background recovery check: a healthy /health half-opens a tripped server early. */
+        private void probeOpenBreakers() {
+            List<String> open = new ArrayList<>();
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                for (Breaker b : breakers) {
+                    if (b.state == State.OPEN && now >= b.notBefore) open.add(b.url);
+                }
+            }
+            for (String url : open) {
+                try {
+                    HttpRequest req = HttpRequest.newBuilder()
+                            .uri(URI.create(url + "/health"))
+                            .header("User-Agent", USER_AGENT)
+                            .timeout(Duration.ofSeconds(10))
+                            .GET().build();
+                    HttpResponse<String> resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
+                    if (resp.statusCode() == 200 && "healthy".equals(jsonString(parseJson(resp.body()), "status"))) {
+                        synchronized (this) {
+                            Breaker b = find(url);
+                            if (b != null && b.state == State.OPEN) {
+                                b.state = State.HALF_OPEN;
+                                log("  API server " + url + " answers /health again (circuit half-open).");
+                            }
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    // Still down; try again next round
+                }
+            }
+        }
+
+        void close() {
+            prober.shutdownNow();
+        }
+    }
+
+
+    // =========================================================================
+    // Authentication
+    // =========================================================================
+
+    /**
+     * Returns the token, or null when the server turned the login down.
+     * Failures worth retrying (no answer, 429, 5xx) are logged and thrown.
+     */
+    private static String loginToApi(String baseUrl) throws IOException, InterruptedException {
+        log("Logging in as " + EMAIL + "...");
+
+        String payload = "{\"email\":" + jsonQuote(EMAIL) + ",\"password\":" + jsonQuote(PASSWORD) + "}";
+        HttpRequest req = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/auth/login"))
+                .header("User-Agent", USER_AGENT)
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(60))
+                .POST(HttpRequest.BodyPublishers.ofString(payload))
+                .build();
+
+        HttpResponse<String> resp;
+        try {
+            resp = httpClient.send(req, HttpResponse.BodyHandlers.ofString());
+        } catch (java.net.http.HttpTimeoutException e) {
+            log("Login failed: Request timed out.");
+            throw e;
+        } catch (java.net.ConnectException e) {
+            log("Login failed: Could not reach " + baseUrl);
+            throw e;
+        } catch (IOException e) {
+            log("Login failed: " + e.getMessage());
+            throw e;
+        }
+
+        if (resp.statusCode() == 200) {
+            try {
+                String token = jsonString(parseJson(resp.body()), "token");
+                log("Login successful!");
+                return token;
+            } catch (IOException e) {
+                log("Login failed: " + e.getMessage());
+                return null;
+            }
+        } else if (resp.statusCode() == 401) {
+            log("Login failed: Incorrect email or password.");
+            return null;
+        }
+        log("Login failed: Server returned " + resp.statusCode());
+        if (Retry.isTransient(resp.statusCode())) throw new HttpStatusException(resp.statusCode());
+        return null;
+    }
+
+    /**
+     * The login token, kept in OUTPUT_FOLDER/.dnfv_token so a run inside the
+     * token's lifetime does not log in again. The expiry comes from the JWT
+     * "exp" claim. token() logs in again ahead of that expiry, and renew()
+     * does it when a request comes back 401. Both are synchronized, so any
+     * number of workers hitting an expired token cause a single login, and
+     * the rest pick up its result.
+     */
+    private static final class Session {
+        private static final long REFRESH_AHEAD_SECONDS = 300;
+
+        private final Path cacheFile;
+        private String token;
+        private long expiresAt;   // epoch seconds, 0 if the token does not say
+        private volatile boolean failed;   // the last login gave up
+
+        Session(Path outputFolder) {
+            this.cacheFile = outputFolder.resolve(".dnfv_token");
+        }
+
+        /** Uses the cached token if it is still good, otherwise logs in; false if that fails. */
+        synchronized boolean start() {
+            if (loadCache()) {
+                log("Using saved login for " + EMAIL +
+                        (expiresAt > 0 ? " (valid until " + Instant.ofEpochSecond(expiresAt) + ")" : "") + ".");
+                return true;
+            }
+            return login();
+        }
+
+        /** The token to send now; logs in again first if it is about to expire. */
+        synchronized String token() {
+            if (expiresAt > 0 && Instant.now().getEpochSecond() >= expiresAt - REFRESH_AHEAD_SECONDS) {
+                log("Login expires soon, renewing...");
+                login();
+            }
+            return token;
+        }
+
+        /**
+         * Called with a token the server just rejected. Logs in again unless
+         * another thread already has, and returns the token to retry with,
+         * or null if there is nothing new to try.
+         */
+        synchronized String renew(String rejected) {
+            if (token != null && !token.equals(rejected)) return token;
+            log("Login was rejected (401), logging in again...");
+            return login() ? token : null;
+        }
+
+        /** True when the last login, at start or on renewal, gave up. */
+        boolean failed() {
+            return failed;
+        }
+
+        private boolean login() {
+            boolean ok = tryLogin();
+            failed = !ok;
+            return ok;
+        }
+
+        /** Logs in, failing over between servers and backing off between retries. */
+        private boolean tryLogin() {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    String fresh = apiServers.call(DNFileVaultDownloader::loginToApi);
+                    if (fresh == null) return false;
+                    token = fresh;
+                    expiresAt = expiry(fresh);
+                    saveCache();
+                    return true;
+                } catch (IOException e) {
+                    if (!Retry.allow(attempt)) return false;
+                    long delay = Retry.backoffMillis(attempt);
+                    log("Retrying login in " + Retry.seconds(delay) + "...");
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        /** The JWT "exp" claim, or 0 for tokens that are not JWTs or have none. */
+        private static long expiry(String jwt) {
+            String[] parts = jwt.split("\\.");
+            if (parts.length != 3) return 0;
+            try {
+                String claims = new String(Base64.getUrlDecoder().decode(parts[1]), StandardCharsets.UTF_8);
+                Long exp = jsonLong(parseJson(claims), "exp");
+                return exp != null ? exp : 0;
+            } catch (IllegalArgumentException | IOException e) {
+                return 0;
+            }
+        }
+
+        private boolean loadCache() {
+            try {
+                if (!Files.isRegularFile(cacheFile)) return false;
+                Map<String, Object> cached = parseJson(new String(Files.readAllBytes(cacheFile), StandardCharsets.UTF_8));
+                String cachedToken = jsonString(cached, "token");
+                // A token for another account, or one about to expire, is not worth reusing
+                if (cachedToken == null || !EMAIL.equals(jsonString(cached, "email"))) return false;
+                long exp = expiry(cachedToken);
+                if (exp > 0 && Instant.now().getEpochSecond() >= exp - REFRESH_AHEAD_SECONDS) return false;
+                token = cachedToken;
+                expiresAt = exp;
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /** Written owner-only where the file system supports it, then moved over the old copy. */
+        private void saveCache() {
+            Path tmp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+            String body = "{\"email\":" + jsonQuote(EMAIL) + ",\"token\":" + jsonQuote(token) + "}";
+            try {
+                Files.deleteIfExists(tmp);
+                if (tmp.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                    Files.createFile(tmp, PosixFilePermissions.asFileAttribute(
+                            PosixFilePermissions.fromString("rw-------")));
+                }
+                Files.write(tmp, body.getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                log("  Could not save login: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends a request with the session token. If the server answers 401 the
+     * session is renewed and the request sent once more.
+     */
+    private static <T> HttpResponse<T> sendAuthorized(Supplier<HttpRequest.Builder> request,
+                                                      HttpResponse.BodyHandler<T> handler)
+            throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            String token = session.token();
+            HttpResponse<T> resp = httpClient.send(
+                    request.get().header("Authorization", "Bearer " + token).build(), handler);
+            if (resp.statusCode() != 401 || attempt > 0 || session.renew(token) == null) return resp;
+            if (resp.body() instanceof Closeable) ((Closeable) resp.body()).close();
+        }
+    }
+
+
+    // =========================================================================
+    // File Download
+    // =========================================================================
+
+    /**
+     * LINKED is a file another folder had already downloaded; RETRY is a
+     * failure worth another attempt later: a timeout, dropped connection,
+     * 429 or 5xx.
+     */
+    private enum DownloadResult { DOWNLOADED, LINKED, SKIPPED, FAILED, RETRY }
+
+    /** Where a listed file is saved in its folder. */
+    private static Path savePath(VaultFile file, String saveDirectory) {
+        String displayName = file.displayName;
+        if (displayName == null || displayName.isEmpty()) displayName = file.uuidFilename;
+        return Paths.get(saveDirectory, sanitizeFilename(displayName));
+    }
+
+    private static DownloadResult downloadFile(VaultFile file, String saveDirectory) {
+        Path fullSavePath = savePath(file, saveDirectory);
+        String safeName = fullSavePath.getFileName().toString();
+
+        // Skip if already up to date, or if another worker is already on it
+        SyncManifest.Status status = manifest.check(file, fullSavePath);
+        if (status == SyncManifest.Status.CURRENT) return DownloadResult.SKIPPED;
+        if (!inFlight.add(fullSavePath)) return DownloadResult.SKIPPED;
+
+        try {
+            boolean changed = status == SyncManifest.Status.CHANGED;
+            if (changed) {
+                log("  Out of date: " + safeName + ", downloading again...");
+                // A partial .tmp would belong to the old version (ObjectStore.fetch drops the object's)
+                if (objectStore == null) Files.deleteIfExists(fullSavePath.resolveSibling(safeName + ".tmp"));
+            }
+            DownloadResult result = objectStore != null
+                    ? objectStore.fetch(file, safeName, fullSavePath, changed)
+                    : fetchFile(file, safeName, fullSavePath);
+            if (result == DownloadResult.DOWNLOADED || result == DownloadResult.LINKED) {
+                manifest.record(file, fullSavePath);
+                Path archive = objectStore != null ? objectStore.source(file) : fullSavePath;
+                // ObjectStore.fetch places what it saves itself
+                if (objectStore == null) Unzip.place(safeName, archive, fullSavePath, true);
+                Columnar.submit(file, safeName, archive, fullSavePath);
+            }
+            return result;
+        } catch (IOException e) {
+            log("  \u2717 Error: " + safeName + " - " + e.getMessage());
+            return DownloadResult.FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return DownloadResult.FAILED;
+        } finally {
+            inFlight.remove(fullSavePath);
+        }
+    }
+
+
+    private static DownloadResult fetchFile(VaultFile file, String safeName, Path fullSavePath) {
+        String uuidFilename = file.uuidFilename;
+        String cloudUrl = file.cloudShareLink;
+        Path tempPath = fullSavePath.resolveSibling(fullSavePath.getFileName() + ".tmp");
+        boolean hasApi = uuidFilename != null && !uuidFilename.isEmpty();
+
+        boolean r2Transient = false;
+
+        // Method 1: R2 Direct Link (PRIMARY)
+        if (cloudUrl != null && !cloudUrl.isEmpty()) {
+            log("  Downloading: " + safeName + " via R2...");
+            if (HEDGE_SECONDS > 0 && hasApi) {
+                try {
+                    DownloadResult result = hedgedFetch(file, safeName, tempPath, fullSavePath);
+                    if (result != null) return result;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return DownloadResult.FAILED;
+                }
+            } else {
+                try {
+                    int status = fromR2(file, safeName, tempPath, fullSavePath, new Transfer());
+                    if (status == 0) return complete("R2", safeName, fullSavePath);
+                    log("  R2 returned " + status + ", trying fallback...");
+                    r2Transient = Retry.isTransient(status);
+                } catch (Exception e) {
+                    log("  R2 failed: " + e.getMessage() + ", trying fallback...");
+                    r2Transient = Retry.isTransient(e);
+                }
+            }
+        }
+
+        // Method 2: API Server (FALLBACK)
+        if (!hasApi) {
+            log("  \u2717 No download ID for " + safeName);
+            return r2Transient ? DownloadResult.RETRY : DownloadResult.FAILED;
+        }
+
+        log("  Downloading: " + safeName + " via API...");
+        try {
+            int status = fromApi(file, safeName, tempPath, fullSavePath, new Transfer());
+            if (status == 0) return complete("API", safeName, fullSavePath);
+            log("  \u2717 Failed: " + safeName + " - Status " + status);
+            return Retry.isTransient(status) ? DownloadResult.RETRY : DownloadResult.FAILED;
+        } catch (Exception e) {
+            log("  \u2717 Error: " + safeName + " - " + e.getMessage());
+            long kept = partialSize(tempPath);
+            if (kept > 0) {
+                log("    Kept " + (kept / (1024 * 1024)) + " MB of " + safeName + " to resume.");
+            }
+            return Retry.isTransient(e) ? DownloadResult.RETRY : DownloadResult.FAILED;
+        }
+    }
+
+    private static DownloadResult complete(String source, String safeName, Path fullSavePath) throws IOException {
+        long sizeMb = Files.size(fullSavePath) / (1024 * 1024);
+        log("  \u2713 Complete (" + source + ") - " + safeName + " - " + sizeMb + " MB");
+        return DownloadResult.DOWNLOADED;
+    }
+
+    private static int fromR2(VaultFile file, String safeName, Path tempPath, Path fullSavePath,
+                              Transfer transfer) throws IOException, InterruptedException {
+        URI uri = URI.create(file.cloudShareLink);
+        return HostLimiter.of(uri).run(transfer, () -> tryDownload(() -> HttpRequest.newBuilder()
+                        .uri(uri)
+                        .timeout(Duration.ofMinutes(5))
+                        .GET(),
+                safeName, file, tempPath, fullSavePath, transfer));
+    }
+
+    /**
+     * Server errors move the download to the next healthy API server; a 401
+     * renews the login and tries once more.
+     */
+    private static int fromApi(VaultFile file, String safeName, Path tempPath, Path fullSavePath,
+                               Transfer transfer) throws IOException, InterruptedException {
+        return apiServers.call(baseUrl -> {
+            URI uri = URI.create(baseUrl + "/download/" + file.uuidFilename);
+            for (int attempt = 0; ; attempt++) {
+                String token = session.token();
+                int st = HostLimiter.of(uri).run(transfer, () -> tryDownload(() -> HttpRequest.newBuilder()
+                                .uri(uri)
+                                .header("User-Agent", USER_AGENT)
+                                .header("Authorization", "Bearer " + token)
+                                .timeout(Duration.ofMinutes(10))
+                                .GET(),
+                        safeName, file, tempPath, fullSavePath, transfer));
+                if (st == 401 && attempt == 0 && session.renew(token) != null) continue;
+                // Counted against this server, so the EndpointManager can move on to the next
+                if (st == 429 || st >= 500) throw new HttpStatusException(st, transfer.retryAfterMillis);
+                return st;
+            }
+        });
+    }
+
+
+    // =========================================================================
+    // Hedged Download
+    // =========================================================================
+    //
+    // With DNFV_HEDGE_SEC set, R2 gets that long to deliver DNFV_HEDGE_MIN_KBPS
+    // worth of data. If it has not, the API download starts alongside it into
+    // its own .api.tmp and the two race: the first to finish a verified file
+    // moves it into place and the other is cancelled. A stalled R2 connection
+    // then costs the deadline instead of the 5 minute request timeout. The
+    // loser is stopped wherever it is: queued for a host slot, waiting for
+    // headers (its thread is interrupted) or between body buffers (its
+    // subscription is cancelled), so it gives its thread, slot and .tmp back
+    // at once.
+
+    /** Racing attempts run here so the worker that started them can wait for either. */
+    private static final class HedgePool {
+        static final ExecutorService POOL = newExecutor("dnfv-hedge", DOWNLOAD_WORKERS * 2);
+    }
+
+    /**
+     * What one download attempt has received, and whether it should stop.
+     * Attempts in the same race share a finish line; only the one that
+     * crosses it first moves its file into place.
+     */
+    private static final class Transfer {
+        final AtomicLong received = new AtomicLong();
+        private final AtomicBoolean finishLine;
+        volatile boolean cancelled;
+        volatile HostLimiter host;   // whose throughput the received bytes count towards
+        volatile StreamingUnzip unzip;   // extracting the .tmp as it is written, if anything
+        volatile long retryAfterMillis;  // Retry-After of the last refused attempt
+        volatile HostLimiter waitingFor; // queued for a slot on this host
+        private final Set<ChannelSubscriber> bodies = ConcurrentHashMap.newKeySet();
+
+        Transfer() {
+            this(new AtomicBoolean());
+        }
+
+        Transfer(AtomicBoolean finishLine) {
+            this.finishLine = finishLine;
+        }
+
+        void checkCancelled() throws CancelledException {
+            if (cancelled) throw new CancelledException();
+        }
+
+        /** Stops the attempt from another thread: out of a slot queue, and any body mid-stream. */
+        void cancel() {
+            cancelled = true;
+            HostLimiter queue = waitingFor;
+            if (queue != null) queue.wake();
+            for (ChannelSubscriber body : bodies) body.abort();
+        }
+
+        /** True for the first attempt to finish; later ones must discard their copy. */
+        boolean finish() {
+            return finishLine.compareAndSet(false, true);
+        }
+    }
+
+    /**
+     * R2 with the API as a hedge. Returns null when R2 fails before the hedge
+     * starts, so the caller falls back to the API as usual.
+     */
+    private static DownloadResult hedgedFetch(VaultFile file, String safeName, Path tempPath,
+                                              Path fullSavePath) throws InterruptedException {
+        AtomicBoolean finishLine = new AtomicBoolean();
+        Transfer r2 = new Transfer(finishLine);
+        CompletionService<Integer> race = new ExecutorCompletionService<>(HedgePool.POOL);
+        Future<Integer> r2Attempt = race.submit(() -> discardIfCancelled(tempPath, r2, () ->
+                fromR2(file, safeName, tempPath, fullSavePath, r2)));
+
+        Future<Integer> first = race.poll(HEDGE_SECONDS, TimeUnit.SECONDS);
+        long received = r2.received.get();
+        if (first == null && received >= HEDGE_MIN_KBPS * 1024L * HEDGE_SECONDS) {
+            first = race.take();   // slow to start but moving fast enough now
+        }
+        if (first != null) {
+            if (outcome(first, "R2", safeName) == 0) {
+                try {
+                    return complete("R2", safeName, fullSavePath);
+                } catch (IOException e) {
+                    return DownloadResult.FAILED;
+                }
+            }
+            return null;
+        }
+
+        log("  R2 slow for " + safeName + " (" + (received / 1024) + " KB in " + HEDGE_SECONDS +
+                " s), racing the API...");
+        Transfer api = new Transfer(finishLine);
+        Path apiTempPath = fullSavePath.resolveSibling(fullSavePath.getFileName() + ".api.tmp");
+        Future<Integer> apiAttempt = race.submit(() -> discardIfCancelled(apiTempPath, api, () ->
+                fromApi(file, safeName, apiTempPath, fullSavePath, api)));
+
+        boolean worthRetrying = false;
+        for (int pending = 2; pending > 0; pending--) {
+            Future<Integer> done = race.take();
+            boolean apiWon = done == apiAttempt;
+            if (outcome(done, apiWon ? "API" : "R2", safeName) != 0) {
+                worthRetrying |= failedTransiently(done);
+                continue;
+            }
+
+            // The loser may be stalled with nothing to notice the flag, so stop it and clean up for it too
+            (apiWon ? r2 : api).cancel();
+            (apiWon ? r2Attempt : apiAttempt).cancel(true);
+            try {
+                Files.deleteIfExists(apiWon ? tempPath : apiTempPath);
+            } catch (IOException ignored) {
+                // Still open on its side; it deletes its copy when it sees the flag
+            }
+            try {
+                return complete(apiWon ? "API" : "R2", safeName, fullSavePath);
+            } catch (IOException e) {
+                return DownloadResult.FAILED;
+            }
+        }
+
+        try { Files.deleteIfExists(apiTempPath); } catch (IOException ignored) {}
+        log("  \u2717 Failed: " + safeName + " - neither R2 nor the API delivered it");
+        long kept = partialSize(tempPath);
+        if (kept > 0 && !r2Attempt.isCancelled()) {
+            log("    Kept " + (kept / (1024 * 1024)) + " MB of " + safeName + " to resume.");
+        }
+        // Like a single attempt: 404s, 403s and checksum mismatches on both sides are not worth another go
+        return worthRetrying ? DownloadResult.RETRY : DownloadResult.FAILED;
+    }
+
+    /** Whether a finished race leg that did not deliver failed in a way worth another attempt. */
+    private static boolean failedTransiently(Future<Integer> attempt) {
+        try {
+            int status = attempt.get();
+            return status != 0 && Retry.isTransient(status);
+        } catch (ExecutionException e) {
+            return Retry.isTransient(e.getCause());
+        } catch (CancellationException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** Runs one racing attempt; a cancelled attempt deletes its own .tmp on the way out. */
+    private static int discardIfCancelled(Path tempPath, Transfer transfer, Callable<Integer> attempt)
+            throws Exception {
+        try {
+            return attempt.call();
+        } catch (Exception e) {
+            // Once cancelled, whatever broke the attempt (an interrupt, an aborted body) is the cancel
+            if (!transfer.cancelled) throw e;
+            Files.deleteIfExists(tempPath);
+            throw new CancelledException();
+        }
+    }
+
+    /** The finished attempt's status, or -1 after logging why it failed. */
+    private static int outcome(Future<Integer> attempt, String source, String safeName) {
+        try {
+            int status = attempt.get();
+            if (status != 0) log("  " + source + " returned " + status + " for " + safeName);
+            return status;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (!(cause instanceof CancelledException)) {
+                log("  " + source + " failed for " + safeName + ": " + cause.getMessage());
+            }
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+
+    /**
+     * Downloads one file from one source into finalPath. Large files go
+     * through the segmented path when the source supports ranges; anything
+     * else, including resuming a partial .tmp, is a single stream. The
+     * result is checked against the listing's file_size and checksum before
+     * it is moved into place.
+     *
+     * @return 0 once the file is saved, otherwise the HTTP status that was rejected
+     */
+    private static int tryDownload(Supplier<HttpRequest.Builder> request, String safeName,
+                                   VaultFile file, Path tempPath, Path finalPath, Transfer transfer)
+            throws IOException, InterruptedException {
+        long offset = partialSize(tempPath);
+        MessageDigest digest = newDigest(file.checksum);
+
+        if (SEGMENTS > 1 && offset == 0 && rangeSupport(request) != Boolean.FALSE) {
+            long size = file.fileSize > 0 ? file.fileSize : rangeableSize(request);
+            if (size >= SEGMENT_THRESHOLD) {
+                boolean saved = false;
+                try {
+                    saveSegmented(request, size, safeName, tempPath, transfer);
+                    saved = true;
+                } catch (IOException e) {
+                    transfer.checkCancelled();
+                    log("    Segmented download of " + safeName + " failed (" + e.getMessage() +
+                            "), using a single connection...");
+                }
+                if (saved) {
+                    // Segments arrive out of order, so hash the file once while it is still in cache
+                    if (digest != null) digestFile(tempPath, digest);
+                    verify(file, safeName, tempPath, size, digest);
+                    moveIntoPlace(tempPath, finalPath, transfer);
+                    return 0;
+                }
+            }
+        }
+
+        // Bytes already in the .tmp are part of the checksum too
+        if (digest != null && offset > 0) digestFile(tempPath, digest);
+
+        // A fresh stream arrives front to back, so an archive can be extracted as it lands
+        StreamingUnzip unzip = offset == 0 ? StreamingUnzip.follow(safeName, tempPath) : null;
+        transfer.unzip = unzip;
+        try {
+            HttpResponse<Long> resp;
+            try {
+                resp = sendResumable(request.get(), offset, safeName, tempPath, digest, transfer);
+            } catch (IOException e) {
+                // The client rewraps body errors, so a cancelled race shows up as a plain IOException
+                transfer.checkCancelled();
+                throw e;
+            }
+            if (resp.body() < 0) {
+                // A 416 means the partial file no longer fits the server's copy
+                if (resp.statusCode() == 416) Files.deleteIfExists(tempPath);
+                transfer.retryAfterMillis = retryAfterMillis(resp.headers());
+                return resp.statusCode();
+            }
+            verify(file, safeName, tempPath, resp.body(), digest);
+            boolean extracted = unzip != null && unzip.finish();
+            moveIntoPlace(tempPath, finalPath, transfer);
+            if (extracted) unzip.commit(Unzip.treeFor(finalPath));
+            return 0;
+        } finally {
+            transfer.unzip = null;
+            if (unzip != null) unzip.discard();
+        }
+    }
+
+
+    // =========================================================================
+    // Integrity Checks
+    // =========================================================================
+    //
+    // The listing gives a file_size and a checksum for each file. Single
+    // stream downloads feed every buffer to a MessageDigest on its way to
+    // disk, so checking costs no extra pass over the file. A mismatch deletes
+    // the .tmp and fails the attempt, which sends it to the next source.
+
+    /**
+     * A digest for the listing's checksum, picked by its length (the API
+     * does not name the algorithm); null when checks are off or the value
+     * is not a hex digest we recognise.
+     */
+    private static MessageDigest newDigest(String checksum) {
+        if (!VERIFY_CHECKSUMS || checksum == null || !checksum.matches("[0-9a-fA-F]+")) return null;
+        String algorithm;
+        switch (checksum.length()) {
+            case 32:  algorithm = "MD5"; break;
+            case 40:  algorithm = "SHA-1"; break;
+            case 64:  algorithm = "SHA-256"; break;
+            case 128: algorithm = "SHA-512"; break;
+            default:  return null;
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
+    /** Feeds a file's current contents to the digest. */
+    private static void digestFile(Path path, MessageDigest digest) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (ch.read(buf) != -1) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+    }
+
+    private static void verify(VaultFile file, String safeName, Path tempPath, long length,
+                               MessageDigest digest) throws IOException {
+        String problem = null;
+        if (file.fileSize > 0 && length != file.fileSize) {
+            problem = "size " + length + " bytes, expected " + file.fileSize;
+        } else if (digest != null) {
+            String actual = toHex(digest.digest());
+            if (!actual.equalsIgnoreCase(file.checksum)) {
+                problem = digest.getAlgorithm() + " " + actual + ", expected " + file.checksum;
+            }
+        }
+        if (problem != null) {
+            Files.deleteIfExists(tempPath);
+            throw new IntegrityException("integrity check failed for " + safeName + " (" + problem + ")");
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+
+    // =========================================================================
+    // Resume Support
+    // =========================================================================
+    //
+    // A failed download leaves its <name>.tmp in place. The next attempt (the
+    // API fallback, or the next run) asks for "Range: bytes=N-" and appends
+    // only when the server answers 206 for exactly that offset; a plain 200
+    // means the server ignored the range and the file is rewritten from zero.
+
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes\\s+(\\d+)-");
+
+    /** Size of a partial .tmp file left by an earlier attempt, or 0. */
+    private static long partialSize(Path tempPath) {
+        try {
+            return Files.exists(tempPath) ? Files.size(tempPath) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Sends the request and, if the status is usable, writes the body into
+     * tempPath. The response body is the final file length, or -1 when the
+     * status was rejected and nothing was written.
+     */
+    private static HttpResponse<Long> sendResumable(HttpRequest.Builder req, long offset, String safeName,
+                                                    Path tempPath, MessageDigest digest, Transfer transfer)
+            throws IOException, InterruptedException {
+        transfer.checkCancelled();
+        if (offset > 0) {
+            log("    Resuming " + safeName + " from " + (offset / (1024 * 1024)) + " MB");
+            req.header("Range", "bytes=" + offset + "-");
+        }
+        return httpClient.send(req.build(), info -> {
+            long start = resumeOffset(info.statusCode(), info.headers(), offset);
+            if (start < 0) return new RefusedBody();
+            // Server ignored the range: the partial bytes already hashed are being rewritten
+            if (start == 0 && digest != null) digest.reset();
+            return saveContent(tempPath, start, info.headers(), digest, transfer);
+        });
+    }
+
+    /**
+     * Where the response body starts within the file: the requested offset
+     * for a matching 206, 0 for a full 200, or -1 if the response is unusable.
+     */
+    private static long resumeOffset(int status, HttpHeaders headers, long offset) {
+        if (status == 200) return 0;
+        if (offset > 0 && rangeStart(status, headers) == offset) return offset;
+        return -1;
+    }
+
+    /** First byte of a 206 response according to its Content-Range, or -1. */
+    private static long rangeStart(int status, HttpHeaders headers) {
+        if (status != 206) return -1;
+        // Content-Range: bytes <start>-<end>/<total>
+        String range = headers.firstValue("content-range").orElse("");
+        Matcher m = CONTENT_RANGE.matcher(range);
+        return m.find() ? Long.parseLong(m.group(1)) : -1;
+    }
+
+
+    // =========================================================================
+    // Segmented Download
+    // =========================================================================
+    //
+    // Files of DNFV_SEGMENT_MB or more are split into DNFV_SEGMENTS byte
+    // ranges fetched over separate connections. Each segment writes at its
+    // own offset into a preallocated .tmp through a shared FileChannel, and
+    // the finished file is moved into place exactly like a single stream.
+    // Nothing is split for a host until it has shown it serves ranges: the
+    // first segment goes out alone, and the rest follow only once it came
+    // back as a matching 206. A host that answers with the whole file is
+    // remembered and never split again, and that answer is cut off rather
+    // than read, so a large file is never fetched once per segment.
+
+    /** Per host: whether it answered a range request with a matching 206. */
+    private static final ConcurrentHashMap<String, Boolean> rangeHosts = new ConcurrentHashMap<>();
+
+    private static String hostOf(Supplier<HttpRequest.Builder> request) {
+        return request.get().build().uri().getAuthority();
+    }
+
+    /** TRUE or FALSE once the request's host has shown whether it serves ranges, otherwise null. */
+    private static Boolean rangeSupport(Supplier<HttpRequest.Builder> request) {
+        return rangeHosts.get(hostOf(request));
+    }
+
+    /** Segment fetches get their own pool so download workers can wait on them. */
+    private static final class SegmentPool {
+        static final ExecutorService POOL = newExecutor("dnfv-segment", DOWNLOAD_WORKERS * SEGMENTS);
+    }
+
+    /**
+     * Size of the file when the source will serve byte ranges, from a HEAD
+     * request; 0 when unknown or ranges are not supported.
+     */
+    private static long rangeableSize(Supplier<HttpRequest.Builder> request) {
+        try {
+            HttpRequest req = request.get().method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+            HttpResponse<Void> resp = httpClient.send(req, HttpResponse.BodyHandlers.discarding());
+            boolean ranges = resp.headers().firstValue("accept-ranges").orElse("").contains("bytes");
+            if (resp.statusCode() == 200) rangeHosts.putIfAbsent(hostOf(request), ranges);
+            if (resp.statusCode() == 200 && ranges) {
+                return resp.headers().firstValueAsLong("content-length").orElse(0);
+            }
+        } catch (Exception e) {
+            // No size, no segmenting; the single-stream path reports real errors
+        }
+        return 0;
+    }
+
+    /** Fills tempPath with all segments; the caller verifies and moves it into place. */
+    private static void saveSegmented(Supplier<HttpRequest.Builder> request, long size,
+                                      String safeName, Path tempPath, Transfer transfer)
+            throws IOException, InterruptedException {
+        long segmentLength = (size + SEGMENTS - 1) / SEGMENTS;
+        long startTime = System.currentTimeMillis();
+        log("    Fetching " + safeName + " in " + SEGMENTS + " segments of " +
+                (segmentLength / (1024 * 1024)) + " MB...");
+
+        try (RandomAccessFile raf = new RandomAccessFile(tempPath.toFile(), "rw")) {
+            raf.setLength(size);
+        }
+
+        String host = hostOf(request);
+        boolean proven = rangeHosts.get(host) == Boolean.TRUE;
+        boolean complete = false;
+        List<Future<?>> parts = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+            for (long from = 0; from < size; from += segmentLength) {
+                long start = from;
+                long end = Math.min(size, from + segmentLength) - 1;
+                CompletableFuture<Boolean> accepted = new CompletableFuture<>();
+                parts.add(SegmentPool.POOL.submit(() -> {
+                    fetchSegment(request, start, end, channel, transfer, accepted);
+                    return null;
+                }));
+                if (start == 0 && !proven) {
+                    // Hold the other segments back until the first shows the host honours ranges
+                    try {
+                        if (!accepted.get()) {
+                            rangeHosts.put(host, false);
+                            throw new IOException(host + " does not serve byte ranges");
+                        }
+                        rangeHosts.put(host, true);
+                    } catch (ExecutionException e) {
+                        throw new IOException(e.getCause().getMessage(), e.getCause());
+                    }
+                }
+            }
+            for (Future<?> part : parts) {
+                try {
+                    part.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException ? (IOException) cause
+                            : new IOException(String.valueOf(cause.getMessage()), cause);
+                }
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                for (Future<?> part : parts) part.cancel(true);
+                // A preallocated file has holes, so it cannot be resumed by size
+                try { Files.deleteIfExists(tempPath); } catch (IOException ignored) {}
+            }
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        log(String.format("    %s: %d segments at %.2f MB/s", safeName, parts.size(),
+                (size / (1024.0 * 1024.0)) / (elapsed / 1000.0)));
+    }
+
+    /**
+     * Fetches bytes [from, to] and writes them at the same offsets in the
+     * channel. accepted completes as soon as the headers are in: true for a
+     * matching 206, false for anything else, exceptionally if none came.
+     */
+    private static void fetchSegment(Supplier<HttpRequest.Builder> request, long from, long to,
+                                     FileChannel channel, Transfer transfer, CompletableFuture<Boolean> accepted)
+            throws IOException, InterruptedException {
+        HttpRequest req = request.get().header("Range", "bytes=" + from + "-" + to).build();
+        HttpResponse<Long> resp;
+        try {
+            transfer.checkCancelled();
+            resp = httpClient.send(req, info -> {
+                boolean ranged = rangeStart(info.statusCode(), info.headers()) == from;
+                accepted.complete(ranged);
+                return ranged ? new ChannelSubscriber(channel, from, to + 1, transfer) : new RefusedBody();
+            });
+        } finally {
+            accepted.completeExceptionally(new IOException("no answer to range " + from + "-" + to));
+        }
+
+        if (resp.body() < 0) {
+            throw new IOException("range " + from + "-" + to + " returned " + resp.statusCode());
+        }
+        if (resp.body() != to + 1) {
+            throw new IOException("range " + from + "-" + to + " ended early at " + resp.body());
+        }
+    }
+
+
+    // =========================================================================
+    // Writing to Disk
+    // =========================================================================
+
+    /**
+     * Body subscriber that writes the body into tempPath starting at byte
+     * {@code offset} (0 for a fresh download, the partial size for a resumed
+     * one), feeding the digest along the way if there is one. Completes with
+     * the file length once the body has been written.
+     */
+    private static HttpResponse.BodySubscriber<Long> saveContent(Path tempPath, long offset,
+                                                                 HttpHeaders headers, MessageDigest digest,
+                                                                 Transfer transfer) {
+        long contentLength = headers.firstValueAsLong("content-length").orElse(0);
+        long totalSize = contentLength > 0 ? offset + contentLength : 0;
+        // A live \r meter only makes sense when one file is downloading at a time
+        ProgressMeter meter = DOWNLOAD_WORKERS == 1 && System.console() != null
+                ? new ProgressMeter(offset, totalSize) : null;
+
+        return new ChannelSubscriber(tempPath, offset, meter, digest, transfer);
+    }
+
+    /** Moves the verified file into place, unless a racing attempt already has. */
+    private static void moveIntoPlace(Path tempPath, Path finalPath, Transfer transfer) throws IOException {
+        if (!transfer.finish()) throw new CancelledException();
+        Files.deleteIfExists(finalPath);
+        Files.move(tempPath, finalPath);
+    }
+
+    /**
+     * Body subscriber for a response that cannot be used: completes with -1
+     * and cancels the body straight away instead of reading it to the end.
+     */
+    private static final class RefusedBody implements HttpResponse.BodySubscriber<Long> {
+        @Override
+        public CompletionStage<Long> getBody() {
+            return CompletableFuture.completedFuture(-1L);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            s.cancel();
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    /**
+     * Writes each ByteBuffer the HttpClient hands over straight into a
+     * FileChannel at the current position. There is no intermediate byte[]
+     * and no BufferedOutputStream, so every body byte is copied once on its
+     * way to the page cache. An optional digest sees each buffer just before
+     * it is written, and an extracting follower hears how far the file has
+     * got just after. Completes with the position after the last write.
+     */
+    private static final class ChannelSubscriber implements HttpResponse.BodySubscriber<Long> {
+        private final CompletableFuture<Long> result = new CompletableFuture<>();
+        private final Path path;
+        private final long limit;
+        private final ProgressMeter meter;
+        private final MessageDigest digest;
+        private final Transfer transfer;
+        private final StreamingUnzip unzip;
+        private FileChannel channel;
+        private long position;
+        private Flow.Subscription subscription;
+
+        /** Writes into its own channel on path, truncating it unless resuming at offset. */
+        ChannelSubscriber(Path path, long offset, ProgressMeter meter, MessageDigest digest,
+                          Transfer transfer) {
+            this.path = path;
+            this.position = offset;
+            this.limit = Long.MAX_VALUE;
+            this.meter = meter;
+            this.digest = digest;
+            this.transfer = transfer;
+            this.unzip = transfer.unzip;
+        }
+
+        /** Writes bytes [from, limit) into a channel shared with other segments. */
+        ChannelSubscriber(FileChannel shared, long from, long limit, Transfer transfer) {
+            this.path = null;
+            this.channel = shared;
+            this.position = from;
+            this.limit = limit;
+            this.meter = null;
+            this.digest = null;
+            this.transfer = transfer;
+            this.unzip = null;
+        }
+
+        @Override
+        public CompletionStage<Long> getBody() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription s) {
+            subscription = s;
+            transfer.bodies.add(this);
+            if (transfer.cancelled) {
+                abort();
+                return;
+            }
+            if (channel == null) {
+                try {
+                    channel = position > 0
+                            ? FileChannel.open(path, StandardOpenOption.WRITE)
+                            : FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+                } catch (IOException e) {
+                    s.cancel();
+                    result.completeExceptionally(e);
+                    return;
+                }
+            }
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            if (result.isDone()) return;
+            try {
+                transfer.checkCancelled();
+                long written = 0;
+                for (ByteBuffer buf : buffers) {
+                    written += buf.remaining();
+                    transfer.received.addAndGet(buf.remaining());
+                    HostLimiter host = transfer.host;
+                    if (host != null) host.bytes.add(buf.remaining());
+                    if (position + buf.remaining() > limit) {
+                        throw new IOException("server sent more bytes than requested");
+                    }
+                    if (digest != null) digest.update(buf.duplicate());
+                    while (buf.hasRemaining()) {
+                        position += channel.write(buf, position);
+                    }
+                }
+                if (meter != null) meter.update(position);
+                if (unzip != null) unzip.advance(position);
+                Bandwidth.pace(written, subscription);
+            } catch (IOException e) {
+                subscription.cancel();
+                finish(e);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            finish(t);
+        }
+
+        @Override
+        public void onComplete() {
+            finish(null);
+        }
+
+        /** Called by Transfer.cancel from another thread: stops the body where it is. */
+        void abort() {
+            Flow.Subscription s = subscription;
+            if (s != null) s.cancel();
+            finish(new CancelledException());
+        }
+
+        private synchronized void finish(Throwable error) {
+            if (result.isDone()) return;
+            transfer.bodies.remove(this);
+            if (path != null && channel != null) {
+                try { channel.close(); } catch (IOException ignored) {}
+            }
+            if (meter != null) meter.done();
+            if (error != null) result.completeExceptionally(error);
+            else result.complete(position);
+        }
+    }
+
+    /**
+     * Process-wide token bucket for DNFV_MAX_MBPS. Subscribers ask for the
+     * next buffer only once the bytes they just wrote are paid for; when the
+     * bucket is empty the request is scheduled for when it will have refilled
+     * instead. The client then stops reading that socket and TCP slows the
+     * sender, so no thread sleeps and the cap holds however many downloads
+     * share it. The cap is re-read from the schedule once a second; with no
+     * cap configured at all pace() costs one branch.
+     */
+    private static final class Bandwidth {
+        private static final BandwidthSchedule SCHEDULE = BandwidthSchedule.parse(env("DNFV_MAX_MBPS", ""));
+        private static final boolean CAPPED = !SCHEDULE.isEmpty();
+        private static final ScheduledExecutorService PACER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dnfv-pacer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        private static volatile double bytesPerSecond = SCHEDULE.mbpsAt(LocalTime.now()) * 1024 * 1024;
+        private static double tokens;
+        private static long lastRefill = System.nanoTime();
+        private static long lastScheduleCheck = lastRefill;
+
+        /** Requests the subscriber's next buffer now, or once the bucket covers what it just wrote. */
+        static void pace(long written, Flow.Subscription subscription) {
+            long waitNanos = CAPPED ? reserve(written) : 0;
+            if (waitNanos <= 0) {
+                subscription.request(1);
+            } else {
+                PACER.schedule(() -> subscription.request(1), waitNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private static synchronized long reserve(long bytes) {
+            long now = System.nanoTime();
+            if (now - lastScheduleCheck >= 1_000_000_000L) {
+                lastScheduleCheck = now;
+                double rate = SCHEDULE.mbpsAt(LocalTime.now()) * 1024 * 1024;
+                if (rate != bytesPerSecond) {
+                    bytesPerSecond = rate;
+                    log("  Bandwidth limit now " + SCHEDULE.describe(rate / (1024 * 1024)) + ".");
+                }
+            }
+            double rate = bytesPerSecond;
+            if (rate <= 0) {
+                lastRefill = now;
+                return 0;
+            }
+            // Refill up to one second of burst, then take what was written, going into debt if need be
+            tokens = Math.min(rate, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+
+        /** A startup line describing the cap, or null when there is none. */
+        static String summary() {
+            return CAPPED ? SCHEDULE.toString() : null;
+        }
+    }
+
+    /**
+     * DNFV_MAX_MBPS: a plain number caps every hour of the day, and
+     * HH:MM-HH:MM=N entries override it inside their window (a window may
+     * wrap past midnight). 0 or a missing default means no cap, so
+     * "09:30-16:00=20" caps only trading hours and "5,18:00-06:00=0"
+     * caps everything except overnight.
+     */
+    private static final class BandwidthSchedule {
+        private double defaultMbps;
+        private final List<LocalTime[]> windows = new ArrayList<>();
+        private final List<Double> windowMbps = new ArrayList<>();
+
+        static BandwidthSchedule parse(String spec) {
+            BandwidthSchedule schedule = new BandwidthSchedule();
+            for (String part : spec.split(",")) {
+                part = part.trim();
+                if (part.isEmpty()) continue;
+                try {
+                    int eq = part.indexOf('=');
+                    if (eq < 0) {
+                        schedule.defaultMbps = Double.parseDouble(part);
+                        continue;
+                    }
+                    String[] range = part.substring(0, eq).split("-");
+                    if (range.length != 2) throw new IllegalArgumentException("expected HH:MM-HH:MM");
+                    schedule.windows.add(new LocalTime[] {
+                            LocalTime.parse(range[0].trim()), LocalTime.parse(range[1].trim()) });
+                    schedule.windowMbps.add(Double.parseDouble(part.substring(eq + 1).trim()));
+                } catch (RuntimeException e) {
+                    log("Ignoring DNFV_MAX_MBPS entry '" + part + "': " + e.getMessage());
+                }
+            }
+            return schedule;
+        }
+
+        boolean isEmpty() {
+            return defaultMbps <= 0 && windowMbps.stream().allMatch(m -> m <= 0);
+        }
+
+        /** The cap in MB/s at the given time of day; 0 means none. The first matching window wins. */
+        double mbpsAt(LocalTime time) {
+            for (int i = 0; i < windows.size(); i++) {
+                LocalTime from = windows.get(i)[0];
+                LocalTime to = windows.get(i)[1];
+                boolean inside = from.isBefore(to)
+                        ? !time.isBefore(from) && time.isBefore(to)
+                        : !time.isBefore(from) || time.isBefore(to);
+                if (inside) return Math.max(0, windowMbps.get(i));
+            }
+            return Math.max(0, defaultMbps);
+        }
+
+        String describe(double mbps) {
+            return mbps > 0 ? String.format("%.1f MB/s", mbps) : "off";
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(describe(defaultMbps));
+            for (int i = 0; i < windows.size(); i++) {
+                sb.append(", ").append(windows.get(i)[0]).append('-').append(windows.get(i)[1])
+                        .append(' ').append(describe(windowMbps.get(i)));
+            }
+            return sb.toString();
+        }
+    }
+
+    /** The single-worker \r progress line. */
+    private static final class ProgressMeter {
+        private final long offset;
+        private final long totalSize;
+        private final long startTime = System.currentTimeMillis();
+
+        ProgressMeter(long offset, long totalSize) {
+            this.offset = offset;
+            this.totalSize = totalSize;
+        }
+
+        void update(long totalDownloaded) {
+            long elapsed = System.currentTimeMillis() - startTime;
+            if (elapsed <= 0) return;
+            double speedMbps = ((totalDownloaded - offset) / (1024.0 * 1024.0)) / (elapsed / 1000.0);
+            if (totalSize > 0) {
+                double percent = (totalDownloaded / (double) totalSize) * 100;
+                System.out.printf("\r    Progress: %6.1f%% | Speed: %6.2f MB/s", percent, speedMbps);
+            } else {
+                System.out.printf("\r    Downloaded: %7.1f MB | Speed: %6.2f MB/s",
+                        totalDownloaded / (1024.0 * 1024.0), speedMbps);
+            }
+        }
+
+        void done() {
+            System.out.println();
+        }
+    }
+
+
+    // =========================================================================
+    // Sync Manifest
+    // =========================================================================
+
+    /**
+     * Local record of every file a run has saved: its uuid_filename, size,
+     * checksum, created_at and local path. One entry per saved file, since
+     * the same uuid_filename can be saved under a purchase and a group. Each
+     * listing entry is compared against it so only new or changed files are
+     * fetched, and a file left truncated by a crash is fetched again.
+     *
+     * Stored as .dnfv_state.dat in the output folder: a flat binary list of
+     * length-prefixed entries read with a single file read and decoded in
+     * place, which keeps loading 100k+ files to a couple hundred milliseconds
+     * on a cold JVM (a JSON state file of the same size takes seconds).
+     * Written to a temp file and moved into place by a background thread
+     * every FLUSH_SECONDS while there are new entries, and at the end of the
+     * run; download workers only ever add to the map.
+     */
+    private static final class SyncManifest {
+        enum Status { NEW, CHANGED, CURRENT }
+
+        private static final int MAGIC = 0x444E4656;   // "DNFV"
+        private static final int FORMAT_VERSION = 1;
+        private static final int FLUSH_SECONDS = 5;
+        private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dnfv-manifest");
+            t.setDaemon(true);
+            return t;
+        });
+
+        static final class Entry {
+            final String uuidFilename;
+            final long size;
+            final String checksum;
+            final String createdAt;
+            final String localPath;   // relative to the output folder
+
+            Entry(String uuidFilename, long size, String checksum, String createdAt, String localPath) {
+                this.uuidFilename = uuidFilename;
+                this.size = size;
+                this.checksum = checksum;
+                this.createdAt = createdAt;
+                this.localPath = localPath;
+            }
+        }
+
+        private final Path file;
+        private final Path root;
+        private final Map<String, Entry> byPath;
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        private SyncManifest(Path root, int expectedSize) {
+            this.root = root;
+            this.file = root.resolve(".dnfv_state.dat");
+            this.byPath = new ConcurrentHashMap<>(Math.max(16, expectedSize * 4 / 3));
+        }
+
+        /**
+         * Loads the manifest for an output folder, saving it in the background
+         * from then on; a missing or unreadable file starts empty.
+         */
+        static SyncManifest load(Path root) {
+            SyncManifest m = read(root);
+            FLUSHER.scheduleWithFixedDelay(m::flush, FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+            return m;
+        }
+
+        private static SyncManifest read(Path root) {
+            Path file = root.resolve(".dnfv_state.dat");
+            if (!Files.exists(file)) return new SyncManifest(root, 0);
+
+            long start = System.currentTimeMillis();
+            SyncManifest m = new SyncManifest(root, 0);
+            try {
+                // One read, then decode in place: far quicker than a stream of readUTF calls
+                ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+                if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                    log("  Ignoring " + file + ": unknown format.");
+                    return m;
+                }
+                int count = in.getInt();
+                m = new SyncManifest(root, Math.min(count, in.remaining() / 16));
+                for (int i = 0; i < count; i++) {
+                    String uuid = readString(in);
+                    long size = in.getLong();
+                    Entry e = new Entry(uuid, size, emptyToNull(readString(in)),
+                            emptyToNull(readString(in)), readString(in));
+                    m.byPath.put(e.localPath, e);
+                }
+                log("Loaded sync state: " + count + " file(s) in " +
+                        (System.currentTimeMillis() - start) + " ms.");
+            } catch (IOException | RuntimeException e) {
+                log("  Could not read " + m.file + " (" + e.getMessage() + "), starting fresh.");
+                m.byPath.clear();
+            }
+            return m;
+        }
+
+        /**
+         * Compares a listing entry with what is on disk. A known file is
+         * current when it is still there at its recorded size and the server
+         * reports the same size and checksum. A file on disk that the manifest
+         * has never seen (from before the manifest existed) is adopted when its
+         * size matches the listing.
+         */
+        Status check(VaultFile f, Path target) {
+            Entry known = byPath.get(relative(target));
+
+            long onDisk;
+            try {
+                onDisk = Files.exists(target) ? Files.size(target) : -1;
+            } catch (IOException e) {
+                onDisk = -1;
+            }
+
+            if (known == null) {
+                if (onDisk < 0) return Status.NEW;
+                if (f.fileSize > 0 && onDisk != f.fileSize) return Status.CHANGED;
+                record(f, target);
+                return Status.CURRENT;
+            }
+
+            // DNFV_UNZIP=only keeps the extracted folder in place of the archive
+            if (onDisk < 0 && Unzip.replacedByTree(target)) onDisk = known.size;
+            if (onDisk < 0) return Status.NEW;
+            boolean sameSize = f.fileSize <= 0 || f.fileSize == known.size;
+            boolean sameChecksum = f.checksum == null || known.checksum == null
+                    || f.checksum.equalsIgnoreCase(known.checksum);
+            boolean sameId = f.uuidFilename == null || known.uuidFilename.isEmpty()
+                    || f.uuidFilename.equals(known.uuidFilename);
+            if (!sameSize || !sameChecksum || !sameId || onDisk != known.size) return Status.CHANGED;
+            return Status.CURRENT;
+        }
+
+        /** Notes a file as present and up to date at target. */
+        void record(VaultFile f, Path target) {
+            long size = f.fileSize;
+            try {
+                size = Files.size(target);
+            } catch (IOException e) {
+                // keep the listing size
+            }
+            String rel = relative(target);
+            byPath.put(rel, new Entry(f.uuidFilename != null ? f.uuidFilename : "", size,
+                    f.checksum, f.createdAt, rel));
+            dirty.set(true);
+        }
+
+        private void flush() {
+            if (dirty.get()) save();
+        }
+
+        private String relative(Path target) {
+            return root.relativize(target).toString().replace('\\', '/');
+        }
+
+        /** Writes the manifest atomically; failures are logged, never fatal. */
+        synchronized void save() {
+            dirty.set(false);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            List<Entry> entries = new ArrayList<>(byPath.values());
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+                for (Entry e : entries) {
+                    writeString(out, e.uuidFilename);
+                    out.writeLong(e.size);
+                    writeString(out, e.checksum != null ? e.checksum : "");
+                    writeString(out, e.createdAt != null ? e.createdAt : "");
+                    writeString(out, e.localPath);
+                }
+            } catch (IOException e) {
+                log("  Could not save sync state: " + e.getMessage());
+                return;
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                try {
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e2) {
+                    log("  Could not save sync state: " + e2.getMessage());
+                }
+            }
+        }
+
+        /** Strings are an unsigned 16-bit length followed by UTF-8 bytes. */
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 0xFFFF) throw new IOException("value too long for sync state");
+            out.writeShort(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(ByteBuffer in) {
+            int len = Short.toUnsignedInt(in.getShort());
+            String s = new String(in.array(), in.position(), len, StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+            return s;
+        }
+
+        private static String emptyToNull(String s) {
+            return s.isEmpty() ? null : s;
+        }
+    }
+
+
+    // =========================================================================
+    // Incremental Window
+    // =========================================================================
+    //
+    // Two filters on created_at decide which listed files are looked at at
+    // all. DNFV_DAYS_CHECK keeps files created in the last N days. On top of
+    // that each purchase and group has a high-water mark: the newest
+    // created_at that got past DNFV_DAYS_CHECK in the last run in which its
+    // listing finished and none of its files failed. Later runs drop anything older than the mark (less
+    // an hour, for files the server indexes late) as it is parsed, before it
+    // reaches the manifest or the download queue. DNFV_FULL_SCAN=1 looks at
+    // every file again, e.g. after local copies were deleted.
+
+    /** created_at as an instant; ISO-8601 with or without an offset (then UTC), else null. */
+    private static Instant parseCreatedAt(String createdAt) {
+        if (createdAt == null || createdAt.isEmpty()) return null;
+        try {
+            return java.time.OffsetDateTime.parse(createdAt).toInstant();
+        } catch (java.time.format.DateTimeParseException e) {
+            try {
+                return LocalDateTime.parse(createdAt).toInstant(java.time.ZoneOffset.UTC);
+            } catch (java.time.format.DateTimeParseException e2) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The high-water marks, stored as .dnfv_watermarks.json in the output
+     * folder ({"groups/7": "2026-01-19T10:30:00Z", ...}). Marks only move
+     * forward, and only in save() at the end of a run.
+     */
+    private static final class Watermarks {
+        private static final Duration OVERLAP = Duration.ofHours(1);
+
+        private final Path file;
+        private final Map<String, Instant> marks = new ConcurrentHashMap<>();
+        private final Queue<ListingWindow> opened = new ConcurrentLinkedQueue<>();
+        private final AtomicLong skipped = new AtomicLong();
+
+        private Watermarks(Path file) {
+            this.file = file;
+        }
+
+        static Watermarks load(Path root) {
+            Watermarks w = new Watermarks(root.resolve(".dnfv_watermarks.json"));
+            if (!Files.isRegularFile(w.file)) return w;
+            try {
+                Map<String, Object> stored = parseJson(new String(Files.readAllBytes(w.file), StandardCharsets.UTF_8));
+                for (String key : stored.keySet()) {
+                    Instant mark = parseCreatedAt(jsonString(stored, key));
+                    if (mark != null) w.marks.put(key, mark);
+                }
+            } catch (IOException e) {
+                log("  Could not read sync marks (" + e.getMessage() + "), checking every file.");
+            }
+            return w;
+        }
+
+        /** The window for one listing, e.g. "groups/7"; kept until save(). */
+        ListingWindow open(String key) {
+            Instant since = null;
+            if (DAYS_TO_CHECK != null) since = Instant.now().minus(Duration.ofDays(DAYS_TO_CHECK));
+            Instant mark = FULL_SCAN ? null : marks.get(key);
+            if (mark != null) {
+                Instant fromMark = mark.minus(OVERLAP);
+                if (since == null || fromMark.isAfter(since)) since = fromMark;
+            }
+            ListingWindow window = new ListingWindow(key, since, skipped);
+            opened.add(window);
+            return window;
+        }
+
+        /** Files dropped by the window this run. */
+        long skipped() {
+            return skipped.get();
+        }
+
+        /** Moves the mark of every listing that completed cleanly and writes the file. */
+        void save() {
+            for (ListingWindow window : opened) {
+                Instant newest = window.newest();
+                if (!window.listed || window.failed || newest == null) continue;
+                marks.merge(window.key, newest, (a, b) -> a.isAfter(b) ? a : b);
+            }
+            StringBuilder sb = new StringBuilder("{");
+            for (Map.Entry<String, Instant> e : new TreeMap<>(marks).entrySet()) {
+                if (sb.length() > 1) sb.append(",\n ");
+                sb.append(jsonQuote(e.getKey())).append(": ").append(jsonQuote(e.getValue().toString()));
+            }
+            sb.append("}\n");
+
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try {
+                Files.write(tmp, sb.toString().getBytes(StandardCharsets.UTF_8));
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                log("  Could not save sync marks: " + e.getMessage());
+            }
+        }
+    }
+
+    /** One listing's slice of the window, and how its files did this run. */
+    private static final class ListingWindow {
+        final String key;
+        private final Instant since;   // null: no lower bound
+        private final AtomicLong skipped;
+        private Instant newest;
+        volatile boolean listed;       // the whole listing was read
+        volatile boolean failed;       // a file of it failed for good
+
+        ListingWindow(String key, Instant since, AtomicLong skipped) {
+            this.key = key;
+            this.since = since;
+            this.skipped = skipped;
+        }
+
+        /**
+         * Whether the file is inside the window. Only files let through count
+         * towards the next mark, so one DNFV_DAYS_CHECK run cannot move it
+         * past older files it never looked at.
+         */
+        boolean accepts(VaultFile file) {
+            Instant created = parseCreatedAt(file.createdAt);
+            if (created == null) return true;   // undated: cannot tell, so check it
+            if (since != null && created.isBefore(since)) {
+                skipped.incrementAndGet();
+                return false;
+            }
+            synchronized (this) {
+                if (newest == null || created.isAfter(newest)) newest = created;
+            }
+            return true;
+        }
+
+        synchronized Instant newest() {
+            return newest;
+        }
+    }
+
+
+    // =========================================================================
+    // Object Store
+    // =========================================================================
+    //
+    // The same file is often listed under a purchase and under a group. With
+    // DNFV_DEDUP on (the default) every file is downloaded once into
+    // .dnfv_objects/<2 hex>/<checksum> (or uuid-<uuid_filename> when the
+    // listing has no checksum), and each folder it is listed in gets a
+    // hardlink to that object. Where the file system cannot hardlink (FAT,
+    // exFAT, some network shares) a file is still downloaded only once: it
+    // goes straight into the first folder that lists it this run, and the
+    // other folders get copies of that. Linked copies share their bytes, so
+    // editing one edits all of them. With DNFV_UNZIP=only an object is
+    // deleted once its last folder has swapped the archive for the extracted
+    // folder, which is kept next to it for folders that list it later. At the
+    // end of each sync, objects and extracted folders no folder links to any
+    // more are removed.
+
+    private static final class ObjectStore {
+        private final Path root;
+        /** Objects being downloaded right now; a second job for one waits for the first. */
+        private final ConcurrentHashMap<Path, CompletableFuture<Void>> fetching = new ConcurrentHashMap<>();
+        private final AtomicBoolean copyFallbackLogged = new AtomicBoolean();
+        /** False where the disk cannot hardlink: objects then live in their first folder. */
+        private final boolean hardlinks;
+        /** Without hardlinks: the folder copy this run saved each object to. */
+        private final ConcurrentHashMap<Path, Path> firstCopy = new ConcurrentHashMap<>();
+
+        private ObjectStore(Path outputFolder, boolean hardlinks) {
+            this.root = outputFolder.resolve(".dnfv_objects");
+            this.hardlinks = hardlinks;
+        }
+
+        /** The store for an output folder; where hardlinks cannot be made it says so and copies instead. */
+        static ObjectStore open(Path outputFolder) {
+            Path root = outputFolder.resolve(".dnfv_objects");
+            Path probe = root.resolve(".link-probe");
+            Path link = outputFolder.resolve(".dnfv_link-probe");
+            try {
+                Files.createDirectories(root);
+                Files.write(probe, new byte[0]);
+                Files.deleteIfExists(link);
+                Files.createLink(link, probe);
+                return new ObjectStore(outputFolder, true);
+            } catch (UnsupportedOperationException | IOException e) {
+                log("Hardlinks not available in " + outputFolder + " (" + e.getMessage() +
+                        "), downloading each file once and copying it to the other folders.");
+                return new ObjectStore(outputFolder, false);
+            } finally {
+                try {
+                    Files.deleteIfExists(link);
+                    Files.deleteIfExists(probe);
+                } catch (IOException ignored) {
+                    // harmless leftovers
+                }
+            }
+        }
+
+        Path objectPath(VaultFile file) {
+            String key = file.checksum != null && file.checksum.matches("[0-9a-fA-F]{32,128}")
+                    ? file.checksum.toLowerCase(Locale.ROOT)
+                    : "uuid-" + sanitizeFilename(String.valueOf(file.uuidFilename));
+            String shard = key.startsWith("uuid-") ? "uuid" : key.substring(0, 2);
+            return root.resolve(shard).resolve(key);
+        }
+
+        /** Where the file's bytes are: its object, or without hardlinks the folder copy made first. */
+        Path source(VaultFile file) {
+            return source(objectPath(file));
+        }
+
+        private Path source(Path object) {
+            return hardlinks ? object : firstCopy.getOrDefault(object, object);
+        }
+
+        /**
+         * Makes fullSavePath a copy of the file's object, downloading the
+         * object first if needed, and places its extracted folder. With
+         * changed set, a partial download of the object is dropped first: it
+         * would belong to the old version.
+         */
+        DownloadResult fetch(VaultFile file, String safeName, Path fullSavePath, boolean changed)
+                throws IOException, InterruptedException {
+            Path object = objectPath(file);
+            while (true) {
+                CompletableFuture<Void> mine = new CompletableFuture<>();
+                CompletableFuture<Void> theirs = fetching.putIfAbsent(object, mine);
+                if (theirs != null) {
+                    // Someone else is downloading it; look again once they are done
+                    try {
+                        theirs.get();
+                    } catch (ExecutionException ignored) {
+                        // never completed exceptionally
+                    }
+                    continue;
+                }
+                try {
+                    Path source = source(object);
+                    if (isComplete(source, file)) {
+                        link(source, fullSavePath);
+                        log("  \u2713 " + (hardlinks ? "Linked" : "Copied") + " - " + safeName +
+                                " (downloaded for another folder)");
+                        Unzip.place(safeName, source, fullSavePath, false);
+                        dropIfUnlinked(object, safeName);
+                        return DownloadResult.LINKED;
+                    }
+                    Path tree = Unzip.treeFor(source);
+                    if (!changed && !KEEP_ZIPS && Unzip.wanted(safeName) && Files.isDirectory(tree)) {
+                        // DNFV_UNZIP=only already swapped the archive for its folder; that is all this needs
+                        Unzip.linkTree(tree, Unzip.treeFor(fullSavePath));
+                        Unzip.placed.incrementAndGet();
+                        log("  \u2713 " + (hardlinks ? "Linked" : "Copied") + " - " + safeName +
+                                " (extracted for another folder)");
+                        return DownloadResult.LINKED;
+                    }
+                    // Without hardlinks the first folder gets the download itself, so the bytes are stored once
+                    Path into = hardlinks ? object : fullSavePath;
+                    Files.createDirectories(into.getParent());
+                    if (changed) Files.deleteIfExists(into.resolveSibling(into.getFileName() + ".tmp"));
+                    DownloadResult result = fetchFile(file, safeName, into);
+                    if (result == DownloadResult.DOWNLOADED) {
+                        if (hardlinks) link(object, fullSavePath);
+                        else firstCopy.put(object, fullSavePath);
+                        // Extract before letting the jobs waiting on this object go, so they find the folder
+                        Unzip.place(safeName, into, fullSavePath, true);
+                        dropIfUnlinked(object, safeName);
+                    }
+                    return result;
+                } finally {
+                    fetching.remove(object, mine);
+                    mine.complete(null);
+                }
+            }
+        }
+
+        private static boolean isComplete(Path object, VaultFile file) {
+            try {
+                return Files.isRegularFile(object) && (file.fileSize <= 0 || Files.size(object) == file.fileSize);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * DNFV_UNZIP=only: deletes the archive once no folder links to it any
+         * more, keeping the folder it extracted to. Left for prune() when the
+         * archive still has a CSV conversion coming.
+         */
+        private void dropIfUnlinked(Path object, String safeName) throws IOException {
+            if (!hardlinks || KEEP_ZIPS || !Unzip.wanted(safeName) || Columnar.wanted(safeName)) return;
+            if (linkCount(object) == 1 && Files.isDirectory(Unzip.treeFor(object))) Files.deleteIfExists(object);
+        }
+
+        /**
+         * Removes objects, conversions and extracted folders that no folder
+         * links to any more: the folder copies were deleted, replaced by a new
+         * version, or swapped for the extracted folder. Partial downloads are
+         * kept for resuming. Does nothing where link counts cannot be read.
+         *
+         * @return how many entries were removed
+         */
+        int prune() {
+            if (!hardlinks || !Files.isDirectory(root)) return 0;
+            int removed = 0;
+            try (DirectoryStream<Path> shards = Files.newDirectoryStream(root, Files::isDirectory)) {
+                for (Path shard : shards) {
+                    try (DirectoryStream<Path> entries = Files.newDirectoryStream(shard)) {
+                        for (Path entry : entries) {
+                            String name = entry.getFileName().toString();
+                            if (name.endsWith(".tmp") || name.endsWith(".unzip")) continue;
+                            if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS) ? unlinkedTree(entry)
+                                    : linkCount(entry) == 1) {
+                                Unzip.deleteTree(entry);
+                                removed++;
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log("  Could not clean up " + root + ": " + e.getMessage());
+            }
+            return removed;
+        }
+
+        /** True when no file of an extracted folder is linked from anywhere else. */
+        private static boolean unlinkedTree(Path tree) throws IOException {
+            try (Stream<Path> walk = Files.walk(tree)) {
+                return walk.filter(Files::isRegularFile).allMatch(p -> linkCount(p) == 1);
+            }
+        }
+
+        /** Number of names the file has, or -1 where the file system does not say. */
+        private static int linkCount(Path file) {
+            try {
+                return (Integer) Files.getAttribute(file, "unix:nlink", LinkOption.NOFOLLOW_LINKS);
+            } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+                return -1;
+            }
+        }
+
+        private void link(Path object, Path target) throws IOException {
+            if (!hardlinks) {
+                Files.copy(object, target, StandardCopyOption.REPLACE_EXISTING);
+                return;
+            }
+            Files.deleteIfExists(target);
+            try {
+                Files.createLink(target, object);
+            } catch (UnsupportedOperationException | IOException e) {
+                if (copyFallbackLogged.compareAndSet(false, true)) {
+                    log("  Hardlinks not available here (" + e.getMessage() + "), copying instead.");
+                }
+                Files.copy(object, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+
+    // =========================================================================
+    // Unzip
+    // =========================================================================
+    //
+    // With DNFV_UNZIP set every .zip is also extracted into a folder named
+    // after it (L2_20260116.zip -> L2_20260116/). A fresh single-stream
+    // download is extracted while it arrives: a follower reads the .tmp just
+    // behind the writer, while those pages are still in cache, and inflates
+    // its entries into a staging folder, so extraction ends a moment after
+    // the last byte lands. The staging folder replaces the old one only once
+    // the archive has verified and moved into place. Segmented and resumed
+    // downloads do not arrive front to back, and some archives cannot be
+    // read as a stream (stored entries whose size trails them), so those are
+    // extracted from the finished file instead, entries written in parallel.
+    // With deduplication the folder is extracted once next to the object and
+    // every listing folder gets hardlinks to its files.
+
+    /**
+     * Followers and entry writes run here, apart from the download workers
+     * that wait on them: room for one follower per download worker plus an
+     * entry writer per core. Always platform threads, so a big archive does
+     * not open every one of its entries at once.
+     */
+    private static final class UnzipPool {
+        static final ExecutorService POOL = Executors.newFixedThreadPool(
+                DOWNLOAD_WORKERS + Runtime.getRuntime().availableProcessors(), r -> {
+                    Thread t = new Thread(r, "dnfv-unzip");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    private static final class Unzip {
+        /** Folders this run has already extracted from a download as it streamed. */
+        private static final Set<Path> streamed = ConcurrentHashMap.newKeySet();
+        /** Folders being extracted right now; a second job for one waits for the first. */
+        private static final ConcurrentHashMap<Path, CompletableFuture<Void>> extracting = new ConcurrentHashMap<>();
+        static final AtomicInteger placed = new AtomicInteger();
+
+        static boolean wanted(String safeName) {
+            return UNZIP && safeName.toLowerCase(Locale.ROOT).endsWith(".zip");
+        }
+
+        /** Folder an archive extracts into: its name without .zip, or objects' name plus .unzipped. */
+        static Path treeFor(Path archive) {
+            String name = archive.getFileName().toString();
+            return name.toLowerCase(Locale.ROOT).endsWith(".zip")
+                    ? archive.resolveSibling(name.substring(0, name.length() - 4))
+                    : archive.resolveSibling(name + ".unzipped");
+        }
+
+        /** True when DNFV_UNZIP=only has already swapped this archive for its folder. */
+        static boolean replacedByTree(Path target) {
+            return !KEEP_ZIPS && wanted(target.getFileName().toString()) && Files.isDirectory(treeFor(target));
+        }
+
+        /**
+         * Gives the listing folder the extracted copy of a saved archive,
+         * extracting it first unless this download already did as it
+         * streamed. A bad archive is logged and kept; the download still counts.
+         */
+        static void place(String safeName, Path archive, Path fullSavePath, boolean downloaded) {
+            if (!wanted(safeName)) return;
+            Path tree = treeFor(archive);
+            try {
+                if (!streamed.remove(tree)) extractOnce(archive, tree, downloaded);
+                if (!archive.equals(fullSavePath)) linkTree(tree, treeFor(fullSavePath));
+                if (!KEEP_ZIPS) Files.deleteIfExists(fullSavePath);
+                placed.incrementAndGet();
+            } catch (IOException e) {
+                log("  \u2717 Could not unzip " + safeName + " - " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Extracts archive into tree unless another job already is, in which
+         * case this waits for that one instead. Without replace a folder left
+         * by an earlier extraction is kept.
+         */
+        private static void extractOnce(Path archive, Path tree, boolean replace)
+                throws IOException, InterruptedException {
+            CompletableFuture<Void> mine = new CompletableFuture<>();
+            CompletableFuture<Void> theirs = extracting.putIfAbsent(tree, mine);
+            if (theirs != null) {
+                try {
+                    theirs.get();
+                    return;
+                } catch (ExecutionException e) {
+                    throw new IOException(e.getCause().getMessage(), e.getCause());
+                }
+            }
+            try {
+                if (replace || !Files.isDirectory(tree)) extract(archive, tree);
+                mine.complete(null);
+            } catch (Throwable e) {
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                extracting.remove(tree, mine);
+            }
+        }
+
+        /** Extracts a finished archive into tree, its entries written in parallel. */
+        static void extract(Path archive, Path tree) throws IOException, InterruptedException {
+            Path staging = tree.resolveSibling(tree.getFileName() + ".unzip");
+            deleteTree(staging);
+            Files.createDirectories(staging);
+
+            boolean complete = false;
+            List<Future<?>> writes = new ArrayList<>();
+            try (ZipFile zip = new ZipFile(archive.toFile())) {
+                for (ZipEntry entry : Collections.list(zip.entries())) {
+                    writes.add(UnzipPool.POOL.submit(() -> {
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            write(entry, in, staging);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> write : writes) {
+                    try {
+                        write.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        throw cause instanceof IOException ? (IOException) cause
+                                : new IOException(String.valueOf(cause.getMessage()), cause);
+                    }
+                }
+                complete = true;
+            } finally {
+                if (!complete) {
+                    for (Future<?> write : writes) write.cancel(true);
+                    try { deleteTree(staging); } catch (IOException ignored) {}
+                }
+            }
+            replaceTree(staging, tree);
+        }
+
+        /** Writes one entry under root, refusing names that would land outside it. */
+        static void write(ZipEntry entry, InputStream in, Path root) throws IOException {
+            Path base = root.toAbsolutePath().normalize();
+            Path out = base.resolve(entry.getName()).normalize();
+            if (!out.startsWith(base)) {
+                throw new ZipException("entry " + entry.getName() + " points outside its folder");
+            }
+            if (entry.isDirectory()) {
+                Files.createDirectories(out);
+                return;
+            }
+            Files.createDirectories(out.getParent());
+            Files.copy(in, out, StandardCopyOption.REPLACE_EXISTING);
+            if (entry.getLastModifiedTime() != null) Files.setLastModifiedTime(out, entry.getLastModifiedTime());
+        }
+
+        /** Rebuilds target as hardlinks to every file under tree, like ObjectStore does for archives. */
+        static void linkTree(Path tree, Path target) throws IOException {
+            Path staging = target.resolveSibling(target.getFileName() + ".unzip");
+            deleteTree(staging);
+            try (Stream<Path> walk = Files.walk(tree)) {
+                for (Path from : (Iterable<Path>) walk::iterator) {
+                    Path to = staging.resolve(tree.relativize(from).toString());
+                    if (Files.isDirectory(from)) Files.createDirectories(to);
+                    else objectStore.link(from, to);
+                }
+            }
+            replaceTree(staging, target);
+        }
+
+        /** Swaps staging in for tree; a file already named like the folder is left alone. */
+        static void replaceTree(Path staging, Path tree) throws IOException {
+            if (Files.exists(tree, LinkOption.NOFOLLOW_LINKS) && !Files.isDirectory(tree, LinkOption.NOFOLLOW_LINKS)) {
+                throw new FileAlreadyExistsException(tree.toString(), null, "not a folder, not replacing it");
+            }
+            deleteTree(tree);
+            Files.move(staging, tree);
+        }
+
+        static void deleteTree(Path root) throws IOException {
+            if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) return;
+            try (Stream<Path> walk = Files.walk(root)) {
+                for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(p);
+                }
+            }
+        }
+    }
+
+    /**
+     * Extracts a download while it is still arriving by reading its .tmp up
+     * to wherever the writer has got. Nothing is held in memory beyond
+     * ZipInputStream's own buffers, and a slow follower never holds up the
+     * network: the bytes it has not read yet simply wait on disk.
+     */
+    private static final class StreamingUnzip extends InputStream {
+        private final String safeName;
+        private final Path tempPath;
+        private final Path staging;
+        private Future<?> extraction;
+        private FileChannel channel;   // follower thread only
+        private long read;             // follower thread only
+        private long written;          // guarded by this, like the two flags
+        private boolean ended;
+        private boolean aborted;
+
+        private StreamingUnzip(String safeName, Path tempPath) {
+            this.safeName = safeName;
+            this.tempPath = tempPath;
+            this.staging = tempPath.resolveSibling(tempPath.getFileName() + ".unzip");
+        }
+
+        /** Starts following tempPath if it will hold an archive to extract, otherwise null. */
+        static StreamingUnzip follow(String safeName, Path tempPath) {
+            if (!Unzip.wanted(safeName)) return null;
+            StreamingUnzip unzip = new StreamingUnzip(safeName, tempPath);
+            unzip.extraction = UnzipPool.POOL.submit(unzip::extractAll);
+            return unzip;
+        }
+
+        private Void extractAll() throws IOException {
+            Unzip.deleteTree(staging);
+            Files.createDirectories(staging);
+            try (ZipInputStream zip = new ZipInputStream(this)) {
+                int entries = 0;
+                for (ZipEntry entry; (entry = zip.getNextEntry()) != null; entries++) {
+                    Unzip.write(entry, zip, staging);
+                }
+                if (entries == 0) throw new ZipException("no entries found");
+            }
+            return null;
+        }
+
+        /** Called by the writer after each write. */
+        synchronized void advance(long position) {
+            written = position;
+            notifyAll();
+        }
+
+        /**
+         * Lets the follower read to the end of the finished download and waits
+         * for it. False, after logging why, when the archive could not be read
+         * as a stream.
+         */
+        boolean finish() throws InterruptedException {
+            synchronized (this) {
+                ended = true;
+                notifyAll();
+            }
+            try {
+                extraction.get();
+                return true;
+            } catch (ExecutionException e) {
+                log("    Could not unzip " + safeName + " as it arrived (" + e.getCause().getMessage() +
+                        "), extracting the finished file...");
+                return false;
+            }
+        }
+
+        /** Replaces tree with what the follower extracted, once the archive is in place. */
+        void commit(Path tree) {
+            try {
+                Unzip.replaceTree(staging, tree);
+                Unzip.streamed.add(tree);
+            } catch (IOException e) {
+                log("    Could not move the extracted " + safeName + " into place (" + e.getMessage() + ")");
+            }
+        }
+
+        /** Stops the follower and removes whatever it extracted that was not committed. */
+        void discard() {
+            synchronized (this) {
+                aborted = true;
+                notifyAll();
+            }
+            try {
+                extraction.get();
+            } catch (ExecutionException e) {
+                // already reported by finish(), or the download itself failed
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try { Unzip.deleteTree(staging); } catch (IOException ignored) {}
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            long available;
+            synchronized (this) {
+                while (read >= written && !ended && !aborted) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (aborted) throw new IOException("download stopped");
+                available = written - read;
+            }
+            if (available <= 0) return -1;
+            // The writer creates the file, so it only exists once there is something in it
+            if (channel == null) channel = FileChannel.open(tempPath, StandardOpenOption.READ);
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, available)), read);
+            if (n > 0) read += n;
+            return n;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) channel.close();
+        }
+    }
+
+
+    // =========================================================================
+    // Columnar Conversion
+    // =========================================================================
+    //
+    // With DNFV_COLUMNAR=1 every downloaded CSV, loose or inside a .zip, is
+    // also written as a .dnfc file that analysis code can memory-map and
+    // scan a column at a time instead of parsing text. There is one .dnfc
+    // per CSV, named after the download (L2_20260116.zip -> L2_20260116.dnfc),
+    // plus the CSV's own name when an archive holds more than one. Each CSV
+    // is read twice: once to settle every column's type, dictionary and
+    // size, and once to write each value straight to its final offset, so
+    // nothing bigger than a symbol dictionary is held in memory. Conversions
+    // run on their own pool, one per core, while the downloads carry on.
+    //
+    // File layout, little-endian throughout:
+    //   "DNFC0001"
+    //   column data, each column starting on an 8-byte boundary:
+    //     LONG    int64 per row, Long.MIN_VALUE when empty
+    //     DOUBLE  float64 per row, NaN when empty
+    //     DATE    int32 days since 1970-01-01 per row, Integer.MIN_VALUE when empty
+    //     SYMBOL  int32 code per row into the column's sorted dictionary, -1 when empty
+    //     TEXT    int64 end offsets[rows + 1] (the first is 0), then the UTF-8 bytes
+    //   footer
+    //   int64 offset of the footer, "DNFC0001"
+    //
+    // The footer holds: int32 version, the source tag (the listing checksum
+    // the file was built from, or uuid:size), int64 rows, int32 rows per
+    // zone, int32 column count, then per column its name, int8 type, int64
+    // offset, int64 length, int64 empty count, int64 min, int64 max, int32
+    // zone count with an int64 min and max per zone, and for SYMBOL an int32
+    // count and the dictionary. Min and max are the value for LONG and DATE,
+    // the code for SYMBOL (codes sort like their strings) and the raw bits
+    // for DOUBLE; TEXT has no zones and 0 for both. A zone without values
+    // has min above max. Strings are an int32 byte length and UTF-8 bytes.
+
+    private static final class Columnar {
+        static final byte[] MAGIC = "DNFC0001".getBytes(StandardCharsets.US_ASCII);
+        static final int VERSION = 1;
+        static final int ZONE_ROWS = 65536;
+        /** Text columns with more distinct values than this are stored as TEXT, not SYMBOL. */
+        static final int SYMBOL_LIMIT = 65536;
+        static final byte LONG = 1, DOUBLE = 2, DATE = 3, SYMBOL = 4, TEXT = 5;
+
+        /** Conversion is CPU-bound, so one platform thread per core whatever DNFV_VIRTUAL_THREADS says. */
+        private static final ExecutorService POOL = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), r -> {
+                    Thread t = new Thread(r, "dnfv-columnar");
+                    t.setDaemon(true);
+                    return t;
+                });
+        private static final Queue<Future<?>> pending = new ConcurrentLinkedQueue<>();
+        /** Archives being converted right now; a second job for one waits for the first. */
+        private static final ConcurrentHashMap<Path, CompletableFuture<Void>> converting = new ConcurrentHashMap<>();
+        static final AtomicInteger converted = new AtomicInteger();
+
+        static boolean wanted(String safeName) {
+            String name = safeName.toLowerCase(Locale.ROOT);
+            return COLUMNAR && (name.endsWith(".zip") || name.endsWith(".csv"));
+        }
+
+        /** Queues the conversion of a saved download; archive is where its bytes are (the object with dedup). */
+        static void submit(VaultFile file, String safeName, Path archive, Path fullSavePath) {
+            if (!wanted(safeName)) return;
+            pending.add(POOL.submit(() -> convert(file, safeName, archive, fullSavePath)));
+        }
+
+        /** Waits for every conversion queued so far. */
+        static void await() throws InterruptedException {
+            for (Future<?> conversion; (conversion = pending.poll()) != null; ) {
+                try {
+                    conversion.get();
+                } catch (ExecutionException e) {
+                    // convert() reports its own failures
+                }
+            }
+        }
+
+        private static void convert(VaultFile file, String safeName, Path archive, Path fullSavePath) {
+            try {
+                Map<String, Path> outputs = convertOnce(file, safeName, archive);
+                if (archive.equals(fullSavePath)) return;
+                // Deduplicated: the .dnfc files sit next to the object, so link them in like the file itself
+                String base = baseName(safeName);
+                for (Map.Entry<String, Path> output : outputs.entrySet()) {
+                    String name = outputName(base, output.getKey(), outputs.size());
+                    objectStore.link(output.getValue(), fullSavePath.resolveSibling(name));
+                }
+            } catch (IOException e) {
+                log("  \u2717 Could not convert " + safeName + " to columns - " + e.getMessage());
+            } catch (RuntimeException e) {
+                log("  \u2717 Could not convert " + safeName + " to columns - " + e);
+            }
+        }
+
+        /**
+         * Writes a .dnfc next to archive for each CSV in it whose existing one
+         * was not built from this version of the file.
+         *
+         * @return the .dnfc for each CSV, by the CSV's name
+         */
+        private static Map<String, Path> convertOnce(VaultFile file, String safeName, Path archive)
+                throws IOException {
+            CompletableFuture<Void> mine = new CompletableFuture<>();
+            for (CompletableFuture<Void> theirs; (theirs = converting.putIfAbsent(archive, mine)) != null; ) {
+                theirs.join();   // never completed exceptionally
+            }
+            try {
+                String tag = file.checksum != null && !file.checksum.isEmpty()
+                        ? file.checksum.toLowerCase(Locale.ROOT) : file.uuidFilename + ":" + file.fileSize;
+                List<CsvSource> sources = csvSources(archive, safeName.toLowerCase(Locale.ROOT).endsWith(".zip"));
+                String base = baseName(archive.getFileName().toString());
+                Map<String, Path> outputs = new LinkedHashMap<>();
+                for (CsvSource source : sources) {
+                    Path out = archive.resolveSibling(outputName(base, source.name, sources.size()));
+                    outputs.put(source.name, out);
+                    if (tag.equals(readTag(out))) continue;
+                    long start = System.currentTimeMillis();
+                    long rows = write(source, out, tag);
+                    converted.incrementAndGet();
+                    log(String.format("  Converted %s to columns - %,d rows in %.1f s",
+                            sources.size() == 1 ? safeName : safeName + " / " + source.name, rows,
+                            (System.currentTimeMillis() - start) / 1000.0));
+                }
+                return outputs;
+            } finally {
+                converting.remove(archive, mine);
+                mine.complete(null);
+            }
+        }
+
+        /** The file name without a trailing .zip or .csv. */
+        private static String baseName(String name) {
+            String lower = name.toLowerCase(Locale.ROOT);
+            return lower.endsWith(".zip") || lower.endsWith(".csv") ? name.substring(0, name.length() - 4) : name;
+        }
+
+        private static String outputName(String base, String csvName, int csvCount) {
+            if (csvCount == 1) return base + ".dnfc";
+            return base + "." + sanitizeFilename(baseName(csvName)) + ".dnfc";
+        }
+
+        /** A CSV that can be opened once per pass. */
+        private static final class CsvSource {
+            final String name;
+            final Opener opener;
+
+            CsvSource(String name, Opener opener) {
+                this.name = name;
+                this.opener = opener;
+            }
+        }
+
+        private interface Opener {
+            InputStream open() throws IOException;
+        }
+
+        /**
+         * The CSVs in a download: the file itself, the .csv entries of an
+         * archive, or those of its extracted folder once DNFV_UNZIP=only has
+         * removed the archive.
+         */
+        private static List<CsvSource> csvSources(Path archive, boolean zipped) throws IOException {
+            List<CsvSource> sources = new ArrayList<>();
+            if (!zipped) {
+                sources.add(new CsvSource(archive.getFileName().toString(), () -> Files.newInputStream(archive)));
+            } else if (!Files.exists(archive)) {
+                Path tree = Unzip.treeFor(archive);
+                try (Stream<Path> walk = Files.walk(tree)) {
+                    for (Path csv : (Iterable<Path>) walk.sorted()::iterator) {
+                        if (!Files.isRegularFile(csv) || !isCsv(csv.getFileName().toString())) continue;
+                        String name = tree.relativize(csv).toString().replace('\\', '/');
+                        sources.add(new CsvSource(name, () -> Files.newInputStream(csv)));
+                    }
+                }
+            } else {
+                try (ZipFile zip = new ZipFile(archive.toFile())) {
+                    for (ZipEntry entry : Collections.list(zip.entries())) {
+                        if (entry.isDirectory() || !isCsv(entry.getName())) continue;
+                        String name = entry.getName();
+                        sources.add(new CsvSource(name, () -> openEntry(archive, name)));
+                    }
+                }
+            }
+            return sources;
+        }
+
+        private static boolean isCsv(String name) {
+            return name.toLowerCase(Locale.ROOT).endsWith(".csv");
+        }
+
+        /** One entry of an archive as a stream that closes the archive with it. */
+        private static InputStream openEntry(Path archive, String name) throws IOException {
+            ZipFile zip = new ZipFile(archive.toFile());
+            try {
+                return new FilterInputStream(zip.getInputStream(zip.getEntry(name))) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            zip.close();
+                        }
+                    }
+                };
+            } catch (IOException | RuntimeException e) {
+                zip.close();
+                throw e;
+            }
+        }
+
+        /** The source tag in an existing .dnfc's footer, or null when there is no readable one. */
+        static String readTag(Path file) {
+            if (!Files.isRegularFile(file)) return null;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < 2 * MAGIC.length + 16) return null;
+                ByteBuffer tail = read(channel, size - 16, 16);
+                long footer = tail.getLong();
+                byte[] magic = new byte[MAGIC.length];
+                tail.get(magic);
+                if (!Arrays.equals(magic, MAGIC) || footer < MAGIC.length || footer > size - 16) return null;
+
+                ByteBuffer head = read(channel, footer, (int) Math.min(size - 16 - footer, 4096));
+                if (head.getInt() != VERSION) return null;
+                byte[] tag = new byte[head.getInt()];
+                head.get(tag);
+                return new String(tag, StandardCharsets.UTF_8);
+            } catch (IOException | RuntimeException e) {
+                return null;
+            }
+        }
+
+        private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buf.hasRemaining() && channel.read(buf, position + buf.position()) >= 0) {
+                // keep reading
+            }
+            buf.flip();
+            return buf;
+        }
+
+        /**
+         * Writes one CSV as a .dnfc, reading it once for the layout and once
+         * for the data.
+         *
+         * @return the number of rows
+         */
+        private static long write(CsvSource source, Path out, String tag) throws IOException {
+            Column[] columns;
+            long rows = 0;
+            try (CsvReader csv = new CsvReader(source.opener.open())) {
+                String[] header = csv.next();
+                if (header == null) throw new IOException(source.name + " is empty");
+                columns = new Column[header.length];
+                for (int c = 0; c < columns.length; c++) columns[c] = new Column(header[c]);
+                for (String[] row; (row = csv.next()) != null; rows++) {
+                    for (int c = 0; c < columns.length; c++) columns[c].see(c < row.length ? row[c] : "");
+                }
+            }
+
+            long position = MAGIC.length;
+            for (Column column : columns) position = column.settle(rows, position);
+
+            Path temp = out.resolveSibling(out.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                 CsvReader csv = new CsvReader(source.opener.open())) {
+                channel.write(ByteBuffer.wrap(MAGIC), 0);
+                for (Column column : columns) column.open(channel);
+                csv.next();   // the header
+                long row = 0;
+                for (String[] values; (values = csv.next()) != null; row++) {
+                    if (row == rows) break;
+                    for (int c = 0; c < columns.length; c++) columns[c].write(row, c < values.length ? values[c] : "");
+                }
+                if (row != rows) throw new IOException(source.name + " changed while it was being converted");
+
+                Region footer = new Region(channel, position);
+                footer.putInt(VERSION);
+                footer.putUtf(tag);
+                footer.putLong(rows);
+                footer.putInt(ZONE_ROWS);
+                footer.putInt(columns.length);
+                for (Column column : columns) {
+                    column.flush();
+                    column.describe(footer);
+                }
+                footer.putLong(position);
+                footer.put(MAGIC);
+                footer.flush();
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+            Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING);
+            return rows;
+        }
+
+        /** One column: its statistics from the first pass, then its writer for the second. */
+        private static final class Column {
+            private final String name;
+            private boolean longs = true;
+            private boolean doubles = true;
+            private boolean dates = true;
+            private long empty;
+            private long textBytes;
+            private Set<String> distinct = new HashSet<>();
+
+            private byte type;
+            private long rows;
+            private long offset;
+            private long length;
+            private String[] dictionary;
+            private Map<String, Integer> codes;
+            private long[] zoneMin;
+            private long[] zoneMax;
+            private Region data;
+            private Region text;
+            private long textEnd;
+
+            Column(String name) {
+                this.name = name;
+            }
+
+            void see(String value) {
+                if (value.isEmpty()) {
+                    empty++;
+                    return;
+                }
+                if (dates && parseDate(value) == Integer.MIN_VALUE) dates = false;
+                if (longs && !isLong(value)) longs = false;
+                if (doubles && !longs && !isDouble(value)) doubles = false;
+                if (distinct != null && distinct.add(value) && distinct.size() > SYMBOL_LIMIT) distinct = null;
+                textBytes += utf8Length(value);
+            }
+
+            /** Picks the narrowest type every value fits; returns where the next column may start. */
+            long settle(long rows, long at) {
+                boolean any = rows > empty;
+                if (any && dates) type = DATE;
+                else if (any && longs) type = LONG;
+                else if (any && doubles) type = DOUBLE;
+                else if (distinct != null) type = SYMBOL;
+                else type = TEXT;
+
+                if (type == SYMBOL) {
+                    dictionary = distinct.toArray(new String[0]);
+                    Arrays.sort(dictionary);
+                    codes = new HashMap<>(dictionary.length * 2);
+                    for (int i = 0; i < dictionary.length; i++) codes.put(dictionary[i], i);
+                }
+                distinct = null;
+
+                this.rows = rows;
+                this.offset = at;
+                if (type == TEXT) length = (rows + 1) * 8 + textBytes;
+                else length = rows * (type == DATE || type == SYMBOL ? 4 : 8);
+
+                int zones = type == TEXT ? 0 : (int) ((rows + ZONE_ROWS - 1) / ZONE_ROWS);
+                zoneMin = new long[zones];
+                zoneMax = new long[zones];
+                Arrays.fill(zoneMin, type == DOUBLE ? Double.doubleToRawLongBits(Double.POSITIVE_INFINITY) : Long.MAX_VALUE);
+                Arrays.fill(zoneMax, type == DOUBLE ? Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY) : Long.MIN_VALUE);
+                return (at + length + 7) & ~7L;
+            }
+
+            void open(FileChannel channel) throws IOException {
+                data = new Region(channel, offset);
+                if (type == TEXT) {
+                    data.putLong(0);
+                    text = new Region(channel, offset + (rows + 1) * 8);
+                }
+            }
+
+            void write(long row, String value) throws IOException {
+                int zone = (int) (row / ZONE_ROWS);
+                boolean blank = value.isEmpty();
+                if (type == LONG) {
+                    long v = blank ? Long.MIN_VALUE : Long.parseLong(value);
+                    data.putLong(v);
+                    if (!blank) note(zone, v);
+                } else if (type == DATE) {
+                    int v = blank ? Integer.MIN_VALUE : parseDate(value);
+                    data.putInt(v);
+                    if (!blank) note(zone, v);
+                } else if (type == SYMBOL) {
+                    int v = blank ? -1 : codes.get(value);
+                    data.putInt(v);
+                    if (!blank) note(zone, v);
+                } else if (type == DOUBLE) {
+                    double v = blank ? Double.NaN : Double.parseDouble(value);
+                    data.putDouble(v);
+                    if (!Double.isNaN(v)) {
+                        if (v < Double.longBitsToDouble(zoneMin[zone])) zoneMin[zone] = Double.doubleToRawLongBits(v);
+                        if (v > Double.longBitsToDouble(zoneMax[zone])) zoneMax[zone] = Double.doubleToRawLongBits(v);
+                    }
+                } else {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    text.put(bytes);
+                    textEnd += bytes.length;
+                    data.putLong(textEnd);
+                }
+            }
+
+            private void note(int zone, long v) {
+                if (v < zoneMin[zone]) zoneMin[zone] = v;
+                if (v > zoneMax[zone]) zoneMax[zone] = v;
+            }
+
+            void flush() throws IOException {
+                data.flush();
+                if (text != null) text.flush();
+            }
+
+            void describe(Region footer) throws IOException {
+                long min = 0, max = 0;
+                if (type == DOUBLE) {
+                    double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+                    for (int z = 0; z < zoneMin.length; z++) {
+                        lo = Math.min(lo, Double.longBitsToDouble(zoneMin[z]));
+                        hi = Math.max(hi, Double.longBitsToDouble(zoneMax[z]));
+                    }
+                    min = Double.doubleToRawLongBits(lo);
+                    max = Double.doubleToRawLongBits(hi);
+                } else if (type != TEXT) {
+                    min = Long.MAX_VALUE;
+                    max = Long.MIN_VALUE;
+                    for (int z = 0; z < zoneMin.length; z++) {
+                        min = Math.min(min, zoneMin[z]);
+                        max = Math.max(max, zoneMax[z]);
+                    }
+                }
+                footer.putUtf(name);
+                footer.put(type);
+                footer.putLong(offset);
+                footer.putLong(length);
+                footer.putLong(empty);
+                footer.putLong(min);
+                footer.putLong(max);
+                footer.putInt(zoneMin.length);
+                for (int z = 0; z < zoneMin.length; z++) {
+                    footer.putLong(zoneMin[z]);
+                    footer.putLong(zoneMax[z]);
+                }
+                if (type == SYMBOL) {
+                    footer.putInt(dictionary.length);
+                    for (String s : dictionary) footer.putUtf(s);
+                }
+            }
+        }
+
+        /** Optional sign and up to 18 digits, so it always fits a long. */
+        private static boolean isLong(String s) {
+            int i = s.charAt(0) == '-' || s.charAt(0) == '+' ? 1 : 0;
+            if (i == s.length() || s.length() - i > 18) return false;
+            for (; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch < '0' || ch > '9') return false;
+            }
+            return true;
+        }
+
+        private static boolean isDouble(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if ((ch < '0' || ch > '9') && ch != '.' && ch != '-' && ch != '+' && ch != 'e' && ch != 'E') {
+                    return false;
+                }
+            }
+            try {
+                Double.parseDouble(s);
+                return true;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        /** Days since 1970-01-01 for yyyy-mm-dd or m/d/yyyy, or Integer.MIN_VALUE. */
+        static int parseDate(String s) {
+            int y, m, d;
+            if (s.length() == 10 && s.charAt(4) == '-' && s.charAt(7) == '-') {
+                y = digits(s, 0, 4);
+                m = digits(s, 5, 7);
+                d = digits(s, 8, 10);
+            } else {
+                int a = s.indexOf('/');
+                int b = a < 1 ? -1 : s.indexOf('/', a + 1);
+                if (b < 0 || s.length() - b != 5) return Integer.MIN_VALUE;
+                m = digits(s, 0, a);
+                d = digits(s, a + 1, b);
+                y = digits(s, b + 1, s.length());
+            }
+            if (y < 0 || m < 1 || m > 12 || d < 1 || d > 31) return Integer.MIN_VALUE;
+            try {
+                return (int) LocalDate.of(y, m, d).toEpochDay();
+            } catch (java.time.DateTimeException e) {
+                return Integer.MIN_VALUE;
+            }
+        }
+
+        private static int digits(String s, int from, int to) {
+            if (from >= to || to - from > 4) return -1;
+            int v = 0;
+            for (int i = from; i < to; i++) {
+                char ch = s.charAt(i);
+                if (ch < '0' || ch > '9') return -1;
+                v = v * 10 + (ch - '0');
+            }
+            return v;
+        }
+
+        private static long utf8Length(String s) {
+            long n = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch < 0x80) n++;
+                else if (ch < 0x800) n += 2;
+                else if (Character.isHighSurrogate(ch) && i + 1 < s.length()
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    n += 4;
+                    i++;
+                } else n += 3;
+            }
+            return n;
+        }
+
+        /** Buffered little-endian writes to one stretch of a file, each region at its own position. */
+        private static final class Region {
+            private final FileChannel channel;
+            private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            private long position;
+
+            Region(FileChannel channel, long position) {
+                this.channel = channel;
+                this.position = position;
+            }
+
+            void put(byte v) throws IOException {
+                room(1);
+                buffer.put(v);
+            }
+
+            void putInt(int v) throws IOException {
+                room(4);
+                buffer.putInt(v);
+            }
+
+            void putLong(long v) throws IOException {
+                room(8);
+                buffer.putLong(v);
+            }
+
+            void putDouble(double v) throws IOException {
+                room(8);
+                buffer.putDouble(v);
+            }
+
+            void put(byte[] bytes) throws IOException {
+                if (bytes.length > buffer.capacity()) {
+                    flush();
+                    ByteBuffer direct = ByteBuffer.wrap(bytes);
+                    while (direct.hasRemaining()) position += channel.write(direct, position);
+                    return;
+                }
+                room(bytes.length);
+                buffer.put(bytes);
+            }
+
+            void putUtf(String s) throws IOException {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                putInt(bytes.length);
+                put(bytes);
+            }
+
+            private void room(int bytes) throws IOException {
+                if (buffer.remaining() < bytes) flush();
+            }
+
+            void flush() throws IOException {
+                buffer.flip();
+                while (buffer.hasRemaining()) position += channel.write(buffer, position);
+                buffer.clear();
+            }
+        }
+
+        /**
+         * Reads comma-separated rows; a field in double quotes may hold
+         * commas and "" for a quote, but not line breaks. Blank lines are
+         * skipped and unquoted fields trimmed.
+         */
+        private static final class CsvReader implements Closeable {
+            private final BufferedReader in;
+            private final List<String> fields = new ArrayList<>();
+            private final StringBuilder quoted = new StringBuilder();
+
+            CsvReader(InputStream in) {
+                this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+            }
+
+            /** The next row, or null at the end. */
+            String[] next() throws IOException {
+                String line;
+                do {
+                    line = in.readLine();
+                    if (line == null) return null;
+                } while (line.trim().isEmpty());
+
+                fields.clear();
+                int n = line.length();
+                int i = line.charAt(0) == '\uFEFF' ? 1 : 0;
+                while (true) {
+                    if (i < n && line.charAt(i) == '"') {
+                        quoted.setLength(0);
+                        for (i++; i < n; i++) {
+                            char ch = line.charAt(i);
+                            if (ch != '"') {
+                                quoted.append(ch);
+                            } else if (i + 1 < n && line.charAt(i + 1) == '"') {
+                                quoted.append('"');
+                                i++;
+                            } else {
+                                i++;
+                                break;
+                            }
+                        }
+                        fields.add(quoted.toString());
+                        while (i < n && line.charAt(i) != ',') i++;
+                    } else {
+                        int end = line.indexOf(',', i);
+                        if (end < 0) end = n;
+                        fields.add(line.substring(i, end).trim());
+                        i = end;
+                    }
+                    if (i >= n) break;
+                    i++;   // the comma
+                }
+                return fields.toArray(new String[0]);
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+        }
+    }
+
+
+    // =========================================================================
+    // Threads
+    // =========================================================================
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor, looked up reflectively so
+     * this file still compiles and runs on Java 11-17. Null when the JVM has
+     * no virtual threads.
+     */
+    private static final java.lang.reflect.Method VIRTUAL_EXECUTOR_FACTORY = findVirtualExecutorFactory();
+
+    private static java.lang.reflect.Method findVirtualExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static boolean useVirtualThreads() {
+        return VIRTUAL_THREADS && VIRTUAL_EXECUTOR_FACTORY != null;
+    }
+
+    /**
+     * Creates the executor for blocking HTTP work. With DNFV_VIRTUAL_THREADS
+     * on a Java 21+ JVM every task gets its own virtual thread (callers bound
+     * concurrency themselves); otherwise a fixed pool of daemon threads.
+     */
+    private static ExecutorService newExecutor(String name, int platformThreads) {
+        if (useVirtualThreads()) {
+            try {
+                return (ExecutorService) VIRTUAL_EXECUTOR_FACTORY.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log("  Virtual threads unavailable (" + e.getMessage() + "), using platform threads.");
+            }
+        }
+        AtomicInteger seq = new AtomicInteger();
+        return Executors.newFixedThreadPool(platformThreads, r -> {
+            Thread t = new Thread(r, name + "-" + seq.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+
+    // =========================================================================
+    // Adaptive Concurrency
+    // =========================================================================
+    //
+    // Every download attempt holds a slot on its host (the R2 host, or the
+    // API server it went to). Each host starts at DNFV_PARALLELISM slots and
+    // the controller retunes them every few seconds from what it measured:
+    //   - errors: 429, 5xx, timeouts and dropped connections on 10% or more
+    //     of the attempts that finished cut the limit by 30% (multiplicative
+    //     decrease);
+    //   - all slots busy: the limit doubles until the first sign of trouble
+    //     (slow start), then grows by one (additive increase);
+    //   - a step up that did not raise MB/s by at least 5% is taken back and
+    //     the limit held there for a while, so it settles at the knee of
+    //     the throughput curve instead of piling on connections.
+    // The download pool has DNFV_MAX_PARALLELISM workers; the slots decide
+    // how many of them are actually downloading.
+
+    /** Download workers, and the ceiling for any one host's limit. */
+    private static final int DOWNLOAD_WORKERS = ADAPTIVE ? MAX_PARALLELISM : PARALLELISM;
+
+    private interface DownloadAttempt {
+        int run() throws IOException, InterruptedException;
+    }
+
+    /** A resizable slot count for one host, plus what happened in the current tick. */
+    private static final class HostLimiter {
+        private static final ConcurrentHashMap<String, HostLimiter> HOSTS = new ConcurrentHashMap<>();
+
+        final String host;
+        final LongAdder bytes = new LongAdder();
+        private final AtomicInteger successes = new AtomicInteger();
+        private final AtomicInteger errors = new AtomicInteger();
+        private int limit = PARALLELISM;
+        private int inFlight;
+        private int peakInFlight;
+
+        // Controller state, only touched from the controller thread
+        private boolean slowStart = true;
+        private int lastStep;
+        private double lastMbps;
+        private int holdTicks;
+
+        private HostLimiter(String host) {
+            this.host = host;
+        }
+
+        static HostLimiter of(URI uri) {
+            String host = uri.getHost() != null ? uri.getHost() : uri.toString();
+            return HOSTS.computeIfAbsent(host, HostLimiter::new);
+        }
+
+        /** Runs the attempt in one of this host's slots and counts its outcome. */
+        int run(Transfer transfer, DownloadAttempt attempt) throws IOException, InterruptedException {
+            acquire(transfer);
+            transfer.host = this;
+            try {
+                int status = attempt.run();
+                (Retry.isTransient(status) ? errors : successes).incrementAndGet();
+                return status;
+            } catch (IOException e) {
+                if (Retry.isTransient(e)) errors.incrementAndGet();
+                throw e;
+            } finally {
+                transfer.host = null;
+                release();
+            }
+        }
+
+        /** Waits for a slot; an attempt cancelled meanwhile leaves the queue without taking one. */
+        private synchronized void acquire(Transfer transfer) throws InterruptedException, CancelledException {
+            transfer.waitingFor = this;
+            try {
+                while (inFlight >= limit) {
+                    transfer.checkCancelled();
+                    wait();
+                }
+                transfer.checkCancelled();
+            } finally {
+                transfer.waitingFor = null;
+            }
+            inFlight++;
+            peakInFlight = Math.max(peakInFlight, inFlight);
+        }
+
+        private synchronized void release() {
+            inFlight--;
+            notifyAll();
+        }
+
+        private synchronized void wake() {
+            notifyAll();
+        }
+
+        /** One controller step: measure the tick that just ended and move the limit. */
+        void tick(double seconds) {
+            double mbps = bytes.sumThenReset() / (1024.0 * 1024.0) / seconds;
+            int failedAttempts = errors.getAndSet(0);
+            int finished = failedAttempts + successes.getAndSet(0);
+            int current;
+            int peak;
+            synchronized (this) {
+                current = limit;
+                peak = peakInFlight;
+                peakInFlight = inFlight;
+            }
+            if (peak == 0) return;   // idle, nothing learned
+
+            int next = current;
+            String reason = null;
+            if (failedAttempts > 0 && failedAttempts * 10 >= finished) {
+                next = Math.max(1, (int) (current * 0.7));
+                reason = failedAttempts + " of " + finished + " attempt(s) failed";
+                slowStart = false;
+                holdTicks = 2;
+            } else if (holdTicks > 0) {
+                holdTicks--;
+            } else if (lastStep > 0 && mbps < lastMbps * 1.05) {
+                next = Math.max(1, current - lastStep);
+                reason = String.format("%.1f MB/s is no better than %.1f MB/s before the last step", mbps, lastMbps);
+                slowStart = false;
+                holdTicks = 6;
+            } else if (peak >= current && current < DOWNLOAD_WORKERS) {
+                next = Math.min(DOWNLOAD_WORKERS, slowStart ? current * 2 : current + 1);
+                reason = String.format("all slots busy at %.1f MB/s", mbps);
+            }
+
+            lastStep = next - current;
+            lastMbps = mbps;
+            if (next != current) {
+                synchronized (this) {
+                    limit = next;
+                    notifyAll();
+                }
+                log("  Concurrency for " + host + ": " + current + " -> " + next + " (" + reason + ")");
+            }
+        }
+    }
+
+    /** Ticks every host's limiter on a daemon thread while downloads run. */
+    private static final class ConcurrencyController {
+        private static final long TICK_SECONDS = 5;
+
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dnfv-concurrency");
+            t.setDaemon(true);
+            return t;
+        });
+        private long lastTick = System.nanoTime();
+
+        void start() {
+            timer.scheduleAtFixedRate(this::tick, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+        }
+
+        private void tick() {
+            long now = System.nanoTime();
+            double seconds = Math.max(0.001, (now - lastTick) / 1e9);
+            lastTick = now;
+            try {
+                for (HostLimiter limiter : HostLimiter.HOSTS.values()) limiter.tick(seconds);
+            } catch (RuntimeException e) {
+                log("  Concurrency controller error: " + e.getMessage());
+            }
+        }
+
+        void stop() {
+            timer.shutdownNow();
+        }
+    }
+
+
+    // =========================================================================
+    // Retries
+    // =========================================================================
+    //
+    // Timeouts, dropped connections, 429 and 5xx are retried up to
+    // DNFV_RETRIES times with exponential backoff and full jitter: attempt n
+    // waits a random 0..min(60 s, 1 s * 2^n), so clients that failed together
+    // do not come back together. Retries also draw on one budget for the
+    // whole run (10 plus 20% of the downloads and listings started), so an
+    // endpoint that is down turns into a bounded number of retries rather
+    // than a retry storm. Anything else (404, bad checksum, disk errors) is
+    // final for this run.
+
+    private static final class Retry {
+        private static final long BASE_MILLIS = 1000;
+        private static final long CAP_MILLIS = 60_000;
+        private static final int MIN_BUDGET = 10;
+        private static final double BUDGET_RATIO = 0.2;
+
+        private static final AtomicLong started = new AtomicLong();
+        private static final AtomicLong retried = new AtomicLong();
+        private static final AtomicBoolean exhaustedLogged = new AtomicBoolean();
+        private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "dnfv-retry");
+            t.setDaemon(true);
+            return t;
+        });
+
+        static boolean isTransient(int status) {
+            return status == 408 || status == 429 || status >= 500;
+        }
+
+        static boolean isTransient(Throwable e) {
+            if (e instanceof HttpStatusException) return isTransient(((HttpStatusException) e).status);
+            if (e instanceof IntegrityException || e instanceof CancelledException) return false;
+            if (e instanceof FileSystemException) return false;   // local disk trouble, not the network
+            return e instanceof IOException;   // timeouts, refused or reset connections
+        }
+
+        /** Starts a new sync with a full budget. */
+        static void reset() {
+            started.set(0);
+            retried.set(0);
+            exhaustedLogged.set(false);
+        }
+
+        /** Counts one unit of work towards the retry budget. */
+        static void track() {
+            started.incrementAndGet();
+        }
+
+        /** Whether failed attempt number {@code attempt} (0 = first) may be retried; takes from the budget if so. */
+        static boolean allow(int attempt) {
+            if (attempt >= RETRIES) return false;
+            long budget = MIN_BUDGET + (long) (started.get() * BUDGET_RATIO);
+            if (retried.incrementAndGet() <= budget) return true;
+            retried.decrementAndGet();
+            if (exhaustedLogged.compareAndSet(false, true)) {
+                log("  Retry budget used up (" + budget + " retries for " + started.get() +
+                        " downloads and listings); further failures are final for this run.");
+            }
+            return false;
+        }
+
+        /** Full-jitter backoff, but never before some API server's Retry-After has passed. */
+        static long backoffMillis(int attempt) {
+            long ceiling = Math.min(CAP_MILLIS, BASE_MILLIS << Math.min(attempt, 20));
+            long paused = apiServers != null ? apiServers.pausedMillis() : 0;
+            return Math.max(paused, ThreadLocalRandom.current().nextLong(ceiling + 1));
+        }
+
+        static String seconds(long millis) {
+            return String.format("%.1f s", millis / 1000.0);
+        }
+
+        /** Runs the task on the timer thread after the delay; it should only hand work off. */
+        static void later(long delayMillis, Runnable task) {
+            TIMER.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    // =========================================================================
+    // Download Order
+    // =========================================================================
+    //
+    // Listed files wait in a priority queue and each free worker takes the
+    // head. Listing order is first come, first served. "largest" starts the
+    // big archives first so a multi-GB file listed last does not run alone
+    // at the end (longest-processing-time-first, the classic makespan
+    // heuristic); "smallest" gets the most files done early; "newest" goes
+    // by created_at; "round-robin" takes one file from each purchase or
+    // group folder in turn, so one huge group cannot hold up the others.
+    // Any order but listing order lets the queue run up to 10,000 files
+    // ahead of the downloads, so there is something to choose from.
+
+    private enum DownloadOrder {
+        LISTING, LARGEST, SMALLEST, NEWEST, ROUND_ROBIN;
+
+        static DownloadOrder parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                log("Unknown DNFV_ORDER '" + name + "', using listing order.");
+                return LISTING;
+            }
+        }
+
+        /** Head of the queue first; ties keep listing order. */
+        Comparator<DownloadJob> comparator() {
+            Comparator<DownloadJob> order;
+            switch (this) {
+                case LARGEST:
+                    order = Comparator.comparingLong((DownloadJob j) -> j.file.fileSize).reversed();
+                    break;
+                case SMALLEST:
+                    order = Comparator.comparingLong((DownloadJob j) -> j.file.fileSize);
+                    break;
+                case NEWEST:
+                    // By instant, so offsets and fractional seconds do not matter; undated files go last
+                    order = Comparator.comparing((DownloadJob j) -> j.created,
+                            Comparator.nullsLast(Comparator.<Instant>reverseOrder()));
+                    break;
+                case ROUND_ROBIN:
+                    order = Comparator.comparingLong((DownloadJob j) -> j.round);
+                    break;
+                default:
+                    order = (a, b) -> 0;
+                    break;
+            }
+            return order.thenComparingLong(j -> j.seq);
+        }
+    }
+
+    /** One queued download; retries go back in with their attempt count. */
+    private static final class DownloadJob {
+        final VaultFile file;
+        final String saveDirectory;
+        final ListingWindow window;
+        final long seq;     // listing order
+        final long round;   // how many files of the same folder were queued before it
+        final int attempt;
+        final Instant created;   // parsed once for DNFV_ORDER=newest; null if undated
+
+        DownloadJob(VaultFile file, String saveDirectory, ListingWindow window, long seq, long round, int attempt) {
+            this(file, saveDirectory, window, seq, round, attempt, parseCreatedAt(file.createdAt));
+        }
+
+        private DownloadJob(VaultFile file, String saveDirectory, ListingWindow window, long seq, long round,
+                            int attempt, Instant created) {
+            this.file = file;
+            this.saveDirectory = saveDirectory;
+            this.window = window;
+            this.seq = seq;
+            this.round = round;
+            this.attempt = attempt;
+            this.created = created;
+        }
+
+        DownloadJob retry() {
+            return new DownloadJob(file, saveDirectory, window, seq, round, attempt + 1, created);
+        }
+    }
+
+
+    // =========================================================================
+    // Download Engine
+    // =========================================================================
+
+    /**
+     * Runs downloadFile on DOWNLOAD_WORKERS workers. At most a few jobs per
+     * worker may be waiting at once; submit() blocks beyond that and offer()
+     * declines. A listing that finds the queue full keeps reading, and holds
+     * what it cannot queue yet (see HeldFiles), so a listing can get well
+     * ahead of the downloads, though only by files that need one. In virtual-thread
+     * mode there is no queue: each job starts on its own thread and the
+     * same permit count caps how many are in flight. A job that fails in a
+     * way worth retrying gives its worker back and is put on the queue
+     * again once its backoff has passed.
+     *
+     * Jobs are not handed to the pool directly: each one goes into the
+     * DNFV_ORDER queue and the pool gets a task that takes whatever is at
+     * the head when a worker picks it up.
+     */
+    private static final class DownloadEngine {
+        private final ExecutorService pool;
+        private final Semaphore backlog;
+        private final Semaphore running;   // virtual threads only: caps jobs taken off the queue
+        private final DownloadOrder order = DownloadOrder.parse(ORDER);
+        private final PriorityQueue<DownloadJob> queue = new PriorityQueue<>(order.comparator());
+        private final Map<String, Long> queuedPerFolder = new HashMap<>();
+        private long seq;
+        private final AtomicInteger submitted = new AtomicInteger();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger downloaded = new AtomicInteger();
+        private final AtomicInteger linked = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private int outstanding;   // submitted and not yet recorded, including ones waiting to retry
+
+        DownloadEngine(int workers) {
+            this.pool = newExecutor("dnfv-download", workers);
+            this.running = useVirtualThreads() ? new Semaphore(workers) : null;
+            this.backlog = new Semaphore(order == DownloadOrder.LISTING ? workers * 4 : Math.max(workers * 4, 10_000));
+            if (order != DownloadOrder.LISTING) {
+                log("Download order: " + order.name().toLowerCase(Locale.ROOT).replace('_', '-') + ".");
+            }
+        }
+
+        void submit(VaultFile file, String saveDirectory, ListingWindow window) throws InterruptedException {
+            backlog.acquire();
+            enqueue(file, saveDirectory, window);
+        }
+
+        /** Queues the file if the backlog has room; false, without waiting, when it is full. */
+        boolean offer(VaultFile file, String saveDirectory, ListingWindow window) {
+            if (!backlog.tryAcquire()) return false;
+            enqueue(file, saveDirectory, window);
+            return true;
+        }
+
+        /** Counts a file the listing found already up to date, without queueing it. */
+        void upToDate() {
+            submitted.incrementAndGet();
+            synchronized (this) {
+                outstanding++;
+            }
+            record(DownloadResult.SKIPPED);
+        }
+
+        private void enqueue(VaultFile file, String saveDirectory, ListingWindow window) {
+            submitted.incrementAndGet();
+            Retry.track();
+            DownloadJob job;
+            synchronized (this) {
+                outstanding++;
+                long round = queuedPerFolder.merge(saveDirectory, 1L, Long::sum) - 1;
+                job = new DownloadJob(file, saveDirectory, window, seq++, round, 0);
+            }
+            execute(job);
+        }
+
+        private void execute(DownloadJob job) {
+            synchronized (queue) {
+                queue.add(job);
+            }
+            try {
+                pool.execute(this::runNext);
+            } catch (RejectedExecutionException e) {
+                synchronized (queue) {
+                    queue.remove(job);
+                }
+                if (job.attempt == 0) backlog.release();
+                job.window.failed = true;
+                record(DownloadResult.FAILED);
+            }
+        }
+
+        /** Runs the job at the head of the queue; there is one of these tasks per queued job. */
+        private void runNext() {
+            if (running != null) {
+                try {
+                    running.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            DownloadJob job;
+            synchronized (queue) {
+                job = queue.poll();
+            }
+            try {
+                if (job != null) run(job);
+            } finally {
+                if (running != null) running.release();
+            }
+        }
+
+        private void run(DownloadJob job) {
+            VaultFile file = job.file;
+            DownloadResult result;
+            try {
+                result = downloadFile(file, job.saveDirectory);
+            } catch (RuntimeException e) {
+                log("  \u2717 Worker error: " + e.getMessage());
+                result = DownloadResult.FAILED;
+            } finally {
+                // Retries wait outside the backlog so listing carries on meanwhile
+                if (job.attempt == 0) backlog.release();
+            }
+            if (result == DownloadResult.RETRY && Retry.allow(job.attempt)) {
+                long delay = Retry.backoffMillis(job.attempt);
+                log("  Will retry " + (file.displayName != null ? file.displayName : file.uuidFilename) +
+                        " in " + Retry.seconds(delay) + " (retry " + (job.attempt + 1) + " of " + RETRIES + ")");
+                Retry.later(delay, () -> execute(job.retry()));
+            } else {
+                // A file that failed for good holds its listing's sync mark back
+                if (result == DownloadResult.FAILED || result == DownloadResult.RETRY) job.window.failed = true;
+                record(result);
+            }
+        }
+
+        private void record(DownloadResult result) {
+            switch (result) {
+                case DOWNLOADED: downloaded.incrementAndGet(); break;
+                case LINKED:     linked.incrementAndGet(); break;
+                case SKIPPED:    skipped.incrementAndGet(); break;
+                default:         failed.incrementAndGet(); break;
+            }
+            int done = completed.incrementAndGet();
+            if (result != DownloadResult.SKIPPED) {
+                log("  [" + done + "/" + submitted.get() + " files] " + downloaded.get() +
+                        " downloaded, " + (linked.get() > 0 ? linked.get() + " linked, " : "") +
+                        skipped.get() + " up to date, " + failed.get() + " failed");
+            }
+            synchronized (this) {
+                if (--outstanding == 0) notifyAll();
+            }
+        }
+
+        /** Waits for every submitted job, retries included, to finish and stops the workers. */
+        void finish() throws InterruptedException {
+            synchronized (this) {
+                long lastReport = System.currentTimeMillis();
+                while (outstanding > 0) {
+                    wait(TimeUnit.MINUTES.toMillis(1));
+                    if (outstanding > 0 && System.currentTimeMillis() - lastReport >= TimeUnit.MINUTES.toMillis(1)) {
+                        log("  Still downloading: " + outstanding + " file(s) left...");
+                        lastReport = System.currentTimeMillis();
+                    }
+                }
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        int downloaded() { return downloaded.get(); }
+        int linked()     { return linked.get(); }
+        int skipped()    { return skipped.get(); }
+        int failed()     { return failed.get(); }
+    }
+
+
+    // =========================================================================
+    // Listing
+    // =========================================================================
+
+    /** Authenticated GET against the current API server; returns the response body. */
+    private static String apiGet(String path) throws IOException, InterruptedException {
+        return apiServers.call(baseUrl -> {
+            HttpResponse<String> resp = sendAuthorized(() -> HttpRequest.newBuilder()
+                            .uri(URI.create(baseUrl + path))
+                            .header("User-Agent", USER_AGENT)
+                            .timeout(Duration.ofSeconds(60))
+                            .GET(),
+                    HttpResponse.BodyHandlers.ofString());
+            if (resp.statusCode() != 200) {
+                throw new HttpStatusException(resp.statusCode(), retryAfterMillis(resp.headers()));
+            }
+            return resp.body();
+        });
+    }
+
+    /**
+     * Authenticated GET whose body is read as it arrives. The caller must
+     * close the stream.
+     */
+    private static InputStream apiStream(String path) throws IOException, InterruptedException {
+        return apiServers.call(baseUrl -> {
+            HttpResponse<InputStream> resp = sendAuthorized(() -> HttpRequest.newBuilder()
+                            .uri(URI.create(baseUrl + path))
+                            .header("User-Agent", USER_AGENT)
+                            .timeout(Duration.ofSeconds(60))
+                            .GET(),
+                    HttpResponse.BodyHandlers.ofInputStream());
+            if (resp.statusCode() != 200) {
+                resp.body().close();
+                throw new HttpStatusException(resp.statusCode(), retryAfterMillis(resp.headers()));
+            }
+            return resp.body();
+        });
+    }
+
+    /**
+     * Files a listing read while the download queue was full. The first
+     * IN_MEMORY stay on the heap; the rest are appended to a temp file in the
+     * output folder, so a listing of hundreds of thousands of new files costs
+     * disk rather than memory while it waits. The file is removed on close.
+     */
+    private static final class HeldFiles implements Closeable {
+        private static final int IN_MEMORY = 1_000;
+
+        private final List<VaultFile> memory = new ArrayList<>();
+        private Path spill;
+        private DataOutputStream out;
+        private int spilled;
+
+        boolean isEmpty() {
+            return memory.isEmpty() && spilled == 0;
+        }
+
+        void add(VaultFile f) {
+            if (memory.size() < IN_MEMORY) {
+                memory.add(f);
+                return;
+            }
+            try {
+                if (out == null) {
+                    spill = Files.createTempFile(Paths.get(OUTPUT_FOLDER), ".dnfv_held-", ".tmp");
+                    out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spill)));
+                }
+                writeString(out, f.uuidFilename);
+                writeString(out, f.displayName);
+                out.writeLong(f.fileSize);
+                writeString(out, f.checksum);
+                writeString(out, f.createdAt);
+                writeString(out, f.cloudShareLink);
+                spilled++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /** Hands every held file to the sink, in listing order. */
+        void drain(FileSink sink) throws IOException, InterruptedException {
+            for (VaultFile f : memory) sink.accept(f);
+            memory.clear();
+            if (out == null) return;
+            out.close();
+            out = null;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(spill)))) {
+                for (; spilled > 0; spilled--) {
+                    sink.accept(new VaultFile(readString(in), readString(in), in.readLong(),
+                            readString(in), readString(in), readString(in)));
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) out.close();
+            if (spill != null) Files.deleteIfExists(spill);
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            out.writeBoolean(s != null);
+            if (s != null) out.writeUTF(s);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+
+    /**
+     * Walks /purchases and /groups and hands every file it finds to the
+     * download engine. Each collection and each per-item files listing is
+     * its own task, so downloads begin while other listings are still in
+     * flight instead of after all of them.
+     */
+    private static final class Lister {
+        private final ExecutorService pool = newExecutor("dnfv-listing", LISTING_PARALLELISM);
+        /** Virtual threads only: caps listings in progress at DNFV_LISTING_PARALLELISM. */
+        private final Semaphore running = useVirtualThreads() ? new Semaphore(LISTING_PARALLELISM) : null;
+        private final Phaser pending = new Phaser(1);
+        private final AtomicInteger failed = new AtomicInteger();
+        private final DownloadEngine engine;
+
+        Lister(DownloadEngine engine) {
+            this.engine = engine;
+        }
+
+        void spawn(Runnable task) {
+            pending.register();
+            Retry.track();
+            run(task);
+        }
+
+        /** Runs a failed listing again after its backoff; await() keeps waiting for it meanwhile. */
+        private void retryLater(long delayMillis, Runnable task) {
+            pending.register();
+            Retry.later(delayMillis, () -> run(task));
+        }
+
+        private void run(Runnable task) {
+            try {
+                pool.execute(() -> {
+                    try {
+                        if (running != null) running.acquire();
+                        try {
+                            task.run();
+                        } finally {
+                            if (running != null) running.release();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        pending.arriveAndDeregister();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                pending.arriveAndDeregister();
+                throw e;
+            }
+        }
+
+        /** Schedules a retry of a listing that failed transiently; false once it should give up. */
+        private boolean retry(Exception e, int attempt, String what, Runnable again) {
+            if (!Retry.isTransient(e) || !Retry.allow(attempt)) return false;
+            long delay = Retry.backoffMillis(attempt);
+            log("Error " + what + ": " + e.getMessage() + ", retrying in " + Retry.seconds(delay) + "...");
+            retryLater(delay, again);
+            return true;
+        }
+
+        /** Listings given up on this run. */
+        int failed() {
+            return failed.get();
+        }
+
+        /** Blocks until every listing task, including ones spawned by other tasks, has finished. */
+        void await() {
+            pending.arriveAndAwaitAdvance();
+            pool.shutdown();
+        }
+
+        /** Lists /{collection} and queues a files listing for each entry. */
+        void listCollection(String collection, String folder, String nameKey) {
+            listCollection(collection, folder, nameKey, 0);
+        }
+
+        private void listCollection(String collection, String folder, String nameKey, int attempt) {
+            String label = collection.substring(0, collection.length() - 1);
+            try {
+                List<Map<String, Object>> items = jsonArray(parseJson(apiGet("/" + collection)), collection);
+                if (items.isEmpty()) {
+                    log("No " + collection + " found.");
+                    return;
+                }
+                log("--- Found " + items.size() + " " + collection + " ---");
+
+                for (Map<String, Object> item : items) {
+                    String rawId = jsonString(item, "id");
+                    String id = rawId != null ? rawId : "unknown";
+                    String name = jsonString(item, nameKey);
+                    if (name == null) name = "Unknown";
+
+                    Path dir = Paths.get(OUTPUT_FOLDER, folder, sanitizeFilename(id + " - " + name));
+                    ensureFolderExists(dir);
+                    ListingWindow window = watermarks.open(collection + "/" + id);
+                    spawn(() -> listFiles(collection, label, id, dir, window, 0));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                if (!retry(e, attempt, "checking " + collection,
+                        () -> listCollection(collection, folder, nameKey, attempt + 1))) {
+                    log("Error checking " + collection + ": " + e.getMessage());
+                    failed.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Parses the files listing straight off the socket, so each record is
+         * queued for download while the rest of the listing is still arriving.
+         * Files outside the window or already up to date are dealt with here
+         * and never queued. Reading never waits on a full download queue, since
+         * the server drops a response left unread for too long: from the first
+         * record that does not fit, the rest are held and queued once the
+         * listing is read.
+         */
+        private void listFiles(String collection, String label, String id, Path dir,
+                               ListingWindow window, int attempt) {
+            String saveDirectory = dir.toString();
+            try (HeldFiles held = new HeldFiles()) {
+                try (Reader body = new InputStreamReader(
+                        apiStream("/" + collection + "/" + id + "/files"),
+                        StandardCharsets.UTF_8)) {
+                    readFiles(body, f -> {
+                        if (!window.accepts(f)) return;
+                        if (manifest.check(f, savePath(f, saveDirectory)) == SyncManifest.Status.CURRENT) {
+                            engine.upToDate();
+                            return;
+                        }
+                        if (!held.isEmpty() || !engine.offer(f, saveDirectory, window)) held.add(f);
+                    });
+                }
+                held.drain(f -> engine.submit(f, saveDirectory, window));
+                window.listed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // Files already queued from a partial listing are skipped when they come round again
+                if (!retry(e, attempt, "getting files for " + label + " " + id,
+                        () -> listFiles(collection, label, id, dir, window, attempt + 1))) {
+                    log("Error getting files for " + label + " " + id + ": " + e.getMessage());
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+
+    // =========================================================================
+    // Daemon Mode
+    // =========================================================================
+    //
+    // With --daemon the connection, login, manifest and object store are set
+    // up once and every sync reuses them: the HttpClient keeps its pooled
+    // connections, the token is only renewed when it nears expiry, and the
+    // adaptive per-host limits carry over. Each sync still re-reads the sync
+    // marks and starts with a full retry budget. When no API server answers
+    // at startup, the daemon tries again at the next scheduled time instead
+    // of exiting, so a brief outage does not need a restart. Discovery runs
+    // again before a sync once the cached endpoint list is older than
+    // DNFV_DISCOVERY_TTL_MIN, when every server's breaker is open, and after
+    // a sync in which the endpoint itself failed (a breaker tripped, a login
+    // gave up or a listing could not be read); a file that failed on its own
+    // does not count. The login and sync state are kept.
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_SOME_FAILED = 1;
+    private static final int EXIT_NO_API = 2;
+
+    /** DNFV_POLL: every N minutes from the start of the last sync, at times of day, or both. */
+    private static final class PollSchedule {
+        private Duration every;
+        private final List<LocalTime> times = new ArrayList<>();
+
+        static PollSchedule parse(String spec) {
+            PollSchedule schedule = new PollSchedule();
+            for (String part : spec.split(",")) {
+                part = part.trim();
+                if (part.isEmpty()) continue;
+                try {
+                    if (part.contains(":")) {
+                        schedule.times.add(LocalTime.parse(part.indexOf(':') == 1 ? "0" + part : part));
+                        continue;
+                    }
+                    int minutes = Integer.parseInt(part);
+                    if (minutes <= 0) throw new IllegalArgumentException("expected minutes above 0");
+                    schedule.every = Duration.ofMinutes(minutes);
+                } catch (RuntimeException e) {
+                    log("Ignoring DNFV_POLL entry '" + part + "': " + e.getMessage());
+                }
+            }
+            if (schedule.every == null && schedule.times.isEmpty()) schedule.every = Duration.ofMinutes(60);
+            Collections.sort(schedule.times);
+            return schedule;
+        }
+
+        /** The next sync: the earliest scheduled moment, or now if the last sync overran its interval. */
+        LocalDateTime next(LocalDateTime lastStart, LocalDateTime now) {
+            LocalDateTime next = null;
+            if (every != null) {
+                next = lastStart.plus(every);
+                if (next.isBefore(now)) next = now;
+            }
+            for (LocalTime time : times) {
+                LocalDateTime at = now.toLocalDate().atTime(time);
+                if (!at.isAfter(now)) at = at.plusDays(1);
+                if (next == null || at.isBefore(next)) next = at;
+            }
+            return next;
+        }
+
+        @Override
+        public String toString() {
+            List<String> parts = new ArrayList<>();
+            if (every != null) parts.add("every " + every.toMinutes() + " minute(s)");
+            if (!times.isEmpty()) {
+                parts.add("at " + times.stream().map(LocalTime::toString).collect(Collectors.joining(", ")));
+            }
+            return String.join(" and ", parts);
+        }
+    }
+
+    /**
+     * Finds a healthy API server, then logs in and loads the sync state
+     * unless an earlier call already did. A daemon calls this again whenever
+     * it needs to look for servers afresh.
+     *
+     * @return EXIT_OK, or EXIT_NO_API after logging why not
+     */
+    private static int connect(boolean daemon) {
+        // Discover API endpoints
+        List<String> endpoints = getApiEndpoints(daemon);
+
+        // Find healthy server
+        String baseUrl = findWorkingApi(endpoints);
+        if (baseUrl == null) {
+            log("ERROR: All API servers are unreachable!");
+            log("Contact support@deltaneutral.com if this persists.");
+            return EXIT_NO_API;
+        }
+        log("Using API: " + baseUrl);
+        if (apiServers != null) apiServers.close();
+        apiServers = new EndpointManager(baseUrl, endpoints);
+        if (manifest != null) return EXIT_OK;
+
+        // Login, or reuse the token saved by an earlier run
+        ensureFolderExists(Paths.get(OUTPUT_FOLDER));
+        session = new Session(Paths.get(OUTPUT_FOLDER));
+        if (!session.start()) {
+            log(daemon ? "Login failed." : "Exiting due to login failure.");
+            apiServers.close();
+            return EXIT_NO_API;
+        }
+
+        manifest = SyncManifest.load(Paths.get(OUTPUT_FOLDER));
+        if (DEDUP) objectStore = ObjectStore.open(Paths.get(OUTPUT_FOLDER));
+        if (VIRTUAL_THREADS && !useVirtualThreads()) {
+            log("DNFV_VIRTUAL_THREADS needs Java 21+ (running " + System.getProperty("java.version") +
+                    "), using platform threads.");
+        }
+        log("Downloading " + PARALLELISM + " file(s) at once per host" +
+                (ADAPTIVE ? ", adapting up to " + DOWNLOAD_WORKERS : "") +
+                (useVirtualThreads() ? ", on virtual threads." : "."));
+        if (Bandwidth.summary() != null) log("Bandwidth cap: " + Bandwidth.summary() + ".");
+        return EXIT_OK;
+    }
+
+    /**
+     * Lists every purchase and group and downloads what is new or changed.
+     *
+     * @return EXIT_OK, or EXIT_SOME_FAILED when a file or listing failed for good
+     */
+    private static int sync() throws InterruptedException {
+        Retry.reset();
+        Unzip.placed.set(0);
+        Columnar.converted.set(0);
+        watermarks = Watermarks.load(Paths.get(OUTPUT_FOLDER));
+        DownloadEngine engine = new DownloadEngine(DOWNLOAD_WORKERS);
+        ConcurrencyController controller = new ConcurrencyController();
+        if (ADAPTIVE) controller.start();
+
+        // List purchases and groups concurrently; files start downloading
+        // as soon as the first listing returns.
+        Lister lister = new Lister(engine);
+        lister.spawn(() -> lister.listCollection("purchases", "Purchases", "product_name"));
+        lister.spawn(() -> lister.listCollection("groups", "Groups", "name"));
+        lister.await();
+        engine.finish();
+        listingsFailed = lister.failed();
+        controller.stop();
+        Columnar.await();
+        manifest.save();
+        watermarks.save();
+        int pruned = objectStore != null ? objectStore.prune() : 0;
+
+        log("All done! Downloaded " + engine.downloaded() + " new file(s), " +
+                (engine.linked() > 0 ? engine.linked() + " linked from other folders, " : "") +
+                engine.skipped() + " already up to date, " + engine.failed() + " failed.");
+        if (Columnar.converted.get() > 0) {
+            log("Converted " + Columnar.converted.get() + " CSV file(s) to columns.");
+        }
+        if (Unzip.placed.get() > 0) {
+            log("Unzipped " + Unzip.placed.get() + " archive(s)" + (KEEP_ZIPS ? "." : " and removed them."));
+        }
+        if (pruned > 0) log("Removed " + pruned + " stored object(s) no folder links to any more.");
+        if (watermarks.skipped() > 0) {
+            log("Passed over " + watermarks.skipped() + " listed file(s) older than the last sync" +
+                    (DAYS_TO_CHECK != null ? " or DNFV_DAYS_CHECK" : "") + ".");
+        }
+        if (lister.failed() > 0) log(lister.failed() + " listing(s) could not be read.");
         log("Files saved to: " + OUTPUT_FOLDER);
-        System.out.println("Press Enter to exit...");
-        System.in.read();
+        return engine.failed() > 0 || lister.failed() > 0 ? EXIT_SOME_FAILED : EXIT_OK;
+    }
+
+    /** Syncs on the DNFV_POLL schedule until the process is stopped. */
+    private static void runDaemon() throws InterruptedException {
+        PollSchedule schedule = PollSchedule.parse(env("DNFV_POLL", "60"));
+        log("Daemon mode: syncing " + schedule + ".");
+        // A sync cut short by a signal keeps what it recorded; its sync marks stay where they were
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (manifest != null) manifest.save();
+            log("Stopped.");
+        }, "dnfv-shutdown"));
+
+        boolean connected = false;
+        while (true) {
+            LocalDateTime start = LocalDateTime.now();
+            if (connected && discoveryStale()) {
+                log("Discovery config is over " + DISCOVERY_TTL_MINUTES + " min old, looking for API servers again.");
+                connected = false;
+            } else if (connected && !apiServers.usable()) {
+                log("Every API server is failing, looking for API servers again.");
+                connected = false;
+            }
+            if (!connected) connected = connect(true) == EXIT_OK;
+            if (connected) {
+                try {
+                    sync();
+                    // Only the endpoint failing is worth looking for servers afresh; a file that keeps failing is not
+                    connected = listingsFailed == 0 && !session.failed() && !apiServers.anyOpen();
+                } catch (RuntimeException e) {
+                    log("Sync failed: " + e);
+                    connected = false;
+                }
+            }
+            LocalDateTime next = schedule.next(start, LocalDateTime.now());
+            log("Next sync at " + next.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")) +
+                    (connected ? "." : ", trying to connect again then."));
+            long wait = Duration.between(LocalDateTime.now(), next).toMillis();
+            if (wait > 0) Thread.sleep(wait);
+        }
+    }
+
+
+    // =========================================================================
+    // Main
+    // =========================================================================
+
+    public static void main(String[] args) throws Exception {
+        boolean daemon = false;
+        boolean headless = false;
+        for (String arg : args) {
+            if (arg.equals("--daemon")) daemon = true;
+            else if (arg.equals("--headless")) headless = true;
+            else log("Ignoring unknown option " + arg + " (expected --daemon or --headless)");
+        }
+
+        log("==================================================");
+        log("DNFileVault Downloader v2.0 (Java)");
+        log("==================================================");
+        log("Output: " + OUTPUT_FOLDER);
+
+        if (daemon) runDaemon();
+
+        int status = connect(false);
+        if (status == EXIT_OK) {
+            status = sync();
+            apiServers.close();
+        }
+        awaitDiscoveryRefresh();
+        if (!headless) {
+            System.out.println("Press Enter to exit...");
+            System.in.read();
+        }
+        System.exit(status);
     }
-}
\ No newline at end of file
+}